@@ -1,16 +1,21 @@
 package fi.vm.sade.lokalisointi.api;
 
+import fi.vm.sade.lokalisointi.storage.Payload;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.springframework.data.relational.core.conversion.DbActionExecutionException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.web.HttpMediaTypeNotAcceptableException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.method.annotation.MethodArgumentTypeMismatchException;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -27,6 +32,50 @@ public abstract class ControllerBase {
     return parseError(e);
   }
 
+  /** True if If-None-Match header matches given entity tag, compared weakly as required for GET. */
+  protected static boolean matches(final String ifNoneMatch, final String eTag) {
+    if (ifNoneMatch == null || eTag == null) {
+      return false;
+    }
+    final String opaqueTag = eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    return Arrays.stream(ifNoneMatch.split(","))
+        .map(String::trim)
+        .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+        .anyMatch(tag -> tag.equals("*") || tag.equals(opaqueTag));
+  }
+
+  /** True if Accept-Encoding header accepts gzip. */
+  protected static boolean acceptsGzip(final String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    return Arrays.stream(acceptEncoding.split(","))
+        .map(coding -> coding.split(";"))
+        .anyMatch(
+            coding ->
+                Set.of("gzip", "*").contains(coding[0].trim().toLowerCase())
+                    && Arrays.stream(coding)
+                        .skip(1)
+                        .map(String::trim)
+                        .noneMatch(param -> param.matches("q=0(\\.0*)?")));
+  }
+
+  /** Entity tag of the representation with given content coding, gzip variant has its own tag. */
+  protected static String eTag(final String eTag, final boolean gzip) {
+    return gzip ? eTag.substring(0, eTag.length() - 1) + "-gzip\"" : eTag;
+  }
+
+  /** Response with gzip compressed or uncompressed body, varying by Accept-Encoding. */
+  protected static ResponseEntity<byte[]> body(
+      final ResponseEntity.BodyBuilder response, final Payload payload, final boolean gzip) {
+    response.varyBy(HttpHeaders.ACCEPT_ENCODING);
+    final byte[] body = gzip ? payload.gzipped() : payload.content();
+    if (gzip) {
+      response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+    }
+    return response.contentLength(body.length).body(body);
+  }
+
   protected Map<String, ?> parseError(final Throwable ex) {
     return Map.of(
         "error",
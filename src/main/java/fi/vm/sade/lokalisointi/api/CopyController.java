@@ -19,6 +19,7 @@ import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBo
 import java.io.IOException;
 import java.security.Principal;
 import java.util.Collection;
+import java.util.Map;
 
 import static fi.vm.sade.lokalisointi.api.LocalisationController.ROLE_CRUD;
 import static fi.vm.sade.lokalisointi.api.LocalisationController.ROLE_UPDATE;
@@ -42,7 +43,7 @@ public class CopyController extends ControllerBase {
       @RequestBody final CopyLocalisations copyRequest, final Principal user) throws IOException {
     try {
       s3.copyLocalisations(copyRequest, user.getName());
-    } catch (final HttpStatusCodeException e) {
+    } catch (final HttpStatusCodeException | IllegalStateException e) {
       LOG.warn(
           """
           Copying localisations failed: %s"""
@@ -65,15 +66,25 @@ public class CopyController extends ControllerBase {
           "Produces a zip of localisation files from this environment, to be copied to another environment")
   @GetMapping(value = "/localisation-files", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
   public ResponseEntity<StreamingResponseBody> localisationFiles(
-      @RequestParam(value = "namespaces", required = false) final Collection<String> namespaces) {
+      @RequestParam(value = "namespaces", required = false) final Collection<String> namespaces,
+      @RequestParam(value = "files", required = false) final Collection<String> files) {
     try {
       return ResponseEntity.ok()
           .contentType(MediaType.APPLICATION_OCTET_STREAM)
           .header("Content-Disposition", "attachment; filename=localisations.zip")
-          .body(s3.getLocalisationFilesZip(namespaces));
+          .body(s3.getLocalisationFilesZip(namespaces, files));
     } catch (final Exception e) {
       LOG.warn("Error producing localisation files zip", e);
       return ResponseEntity.internalServerError().build();
     }
   }
+
+  @Operation(
+      summary =
+          "Lists localisation files of this environment with content hashes, to be compared before copying to another environment")
+  @GetMapping(value = "/manifest", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<Map<String, String>> manifest(
+      @RequestParam(value = "namespaces", required = false) final Collection<String> namespaces) {
+    return ResponseEntity.ok(s3.getLocalisationFilesManifest(namespaces));
+  }
 }
@@ -1,12 +1,26 @@
 package fi.vm.sade.lokalisointi.api;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
 import fi.vm.sade.lokalisointi.model.*;
 import fi.vm.sade.lokalisointi.storage.Database;
-import fi.vm.sade.lokalisointi.storage.S3;
-import fi.vm.sade.lokalisointi.storage.Tolgee;
+import fi.vm.sade.lokalisointi.storage.LocalisationIndex;
+import fi.vm.sade.lokalisointi.storage.LocalisationSnapshot;
+import fi.vm.sade.lokalisointi.storage.Payload;
+import fi.vm.sade.lokalisointi.storage.TolgeeImportQueue;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.ArraySchema;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,14 +28,26 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.annotation.Secured;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.Principal;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
 
 @Tag(name = "localisation", description = "Query localisations")
 @RestController
@@ -33,6 +59,8 @@ public class LocalisationController extends ControllerBase implements Initializi
   public static final String ROLE_CRUD = "ROLE_APP_LOKALISOINTI_CRUD";
 
   private static final Logger LOG = LoggerFactory.getLogger(LocalisationController.class);
+  private static final int MAX_BUNDLE_NAMESPACES = 50;
+  private static final int MAX_BUNDLE_LOCALES = 5;
 
   @Value("${lokalisointi.public-cache-max-age-minutes:5}")
   private Integer cacheMaxAgeMinutes;
@@ -40,15 +68,21 @@ public class LocalisationController extends ControllerBase implements Initializi
   @Value("${lokalisointi.envname}")
   private String envName;
 
-  private final S3 s3;
+  private final LocalisationIndex localisationIndex;
   private final Database database;
-  private final Tolgee tolgee;
+  private final TolgeeImportQueue tolgeeImportQueue;
+  private final ObjectMapper mapper = JsonMapper.builder().build();
+  private final ObjectWriter localisationWriter =
+      mapper.writerFor(Localisation.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
 
   @Autowired
-  public LocalisationController(final S3 s3, final Database database, final Tolgee tolgee) {
-    this.s3 = s3;
+  public LocalisationController(
+      final LocalisationIndex localisationIndex,
+      final Database database,
+      final TolgeeImportQueue tolgeeImportQueue) {
+    this.localisationIndex = localisationIndex;
     this.database = database;
-    this.tolgee = tolgee;
+    this.tolgeeImportQueue = tolgeeImportQueue;
   }
 
   public void afterPropertiesSet() {
@@ -56,9 +90,21 @@ public class LocalisationController extends ControllerBase implements Initializi
     LOG.info("envName: {}", envName);
   }
 
-  @Operation(summary = "Query localisations")
+  @Operation(
+      summary = "Query localisations",
+      responses = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Matching localisations",
+            content =
+                @Content(
+                    mediaType = MediaType.APPLICATION_JSON_VALUE,
+                    array = @ArraySchema(schema = @Schema(implementation = Localisation.class)))),
+        @ApiResponse(responseCode = "304", description = "Not modified"),
+        @ApiResponse(responseCode = "400", description = "Bad request")
+      })
   @GetMapping
-  public ResponseEntity<Collection<Localisation>> query(
+  public ResponseEntity<byte[]> query(
       @Parameter(description = "Id of (overridden) localisation") @RequestParam(required = false)
           final Integer id,
       @Parameter(description = "Alias for namespace, this field is for backwards compatibility")
@@ -77,7 +123,10 @@ public class LocalisationController extends ControllerBase implements Initializi
               description =
                   "If this param contains value 'false' cache-control header with 'no-cache' will be sent in response, otherwise cache-control will set as 'max-age=n, public'")
           @RequestParam(required = false, defaultValue = "true")
-          final Boolean cache) {
+          final Boolean cache,
+      @RequestHeader(value = "If-None-Match", required = false) final String ifNoneMatch,
+      @RequestHeader(value = "Accept-Encoding", required = false) final String acceptEncoding,
+      final HttpServletResponse response) {
     if (category != null && namespace != null && !category.equals(namespace)) {
       throw new IllegalArgumentException(
           "category and namespace are both defined and but do not match");
@@ -90,30 +139,206 @@ public class LocalisationController extends ControllerBase implements Initializi
         key,
         locale,
         cache);
-    final Collection<Localisation> localisationsFromS3 =
-        s3.find(namespace != null ? namespace : category, locale, key);
-    final Collection<Localisation> localisations =
-        id != null
-            ? database.getById(id)
-            : database.withOverrides(
-                localisationsFromS3, namespace != null ? namespace : category, locale, key);
-    return ResponseEntity.ok()
-        .cacheControl(
-            Boolean.FALSE.equals(cache)
-                ? CacheControl.noCache()
-                : CacheControl.maxAge(Duration.of(cacheMaxAgeMinutes, ChronoUnit.MINUTES))
-                    .cachePublic())
-        .body(localisations);
+    final LocalisationSnapshot snapshot = localisationIndex.current();
+    final Query query = new Query(namespace != null ? namespace : category, locale, key);
+    final boolean gzip = acceptsGzip(acceptEncoding);
+    final String eTag = eTag(snapshot.eTag(id != null ? "id=" + id : query), gzip);
+    final CacheControl cacheControl = cacheControl(cache);
+    if (matches(ifNoneMatch, eTag)) {
+      return notModified(eTag, cacheControl);
+    }
+    final Payload localisations;
+    if (id != null) {
+      localisations = Payload.of(serialize(database.getById(id)));
+    } else {
+      localisations =
+          snapshot.serialized(
+              query, () -> serialize(generator -> write(generator, snapshot, query)));
+    }
+    if (localisations == null) {
+      stream(response, eTag, cacheControl, gzip, generator -> write(generator, snapshot, query));
+      return null;
+    }
+    return body(
+        ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_JSON)
+            .eTag(eTag)
+            .cacheControl(cacheControl),
+        localisations,
+        gzip);
+  }
+
+  private record Query(String namespace, String locale, String key) {}
+
+  /** Writes matching localisations while walking the snapshot, without collecting them first. */
+  private void write(
+      final JsonGenerator generator, final LocalisationSnapshot snapshot, final Query query)
+      throws IOException {
+    generator.writeStartArray();
+    snapshot.forEach(
+        query.namespace(),
+        query.locale(),
+        query.key(),
+        localisation -> {
+          try {
+            localisationWriter.writeValue(generator, localisation);
+          } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+    generator.writeEndArray();
+  }
+
+  @Operation(
+      summary = "Get a bundle of localisations",
+      description =
+          "Localisations of given namespaces and locales in one document: {namespace: {locale: {key: value}}}, overrides included. At most 50 namespaces and 5 locales per bundle.",
+      responses = {
+        @ApiResponse(responseCode = "200", description = "Localisation bundle"),
+        @ApiResponse(responseCode = "304", description = "Not modified"),
+        @ApiResponse(responseCode = "400", description = "Bad request")
+      })
+  @GetMapping("/bundle")
+  public ResponseEntity<byte[]> bundle(
+      @Parameter(description = "Namespaces to include", example = "virkailijaraamit")
+          @RequestParam("namespace")
+          final List<String> namespaces,
+      @Parameter(description = "Locales to include", example = "fi") @RequestParam("locale")
+          final List<String> locales,
+      @Parameter(
+              description =
+                  "If this param contains value 'false' cache-control header with 'no-cache' will be sent in response, otherwise cache-control will set as 'max-age=n, public'")
+          @RequestParam(required = false, defaultValue = "true")
+          final Boolean cache,
+      @RequestHeader(value = "If-None-Match", required = false) final String ifNoneMatch,
+      @RequestHeader(value = "Accept-Encoding", required = false) final String acceptEncoding,
+      final HttpServletResponse response) {
+    // same bundle regardless of parameter order and duplicates
+    final Bundle bundle =
+        new Bundle(List.copyOf(new TreeSet<>(namespaces)), List.copyOf(new TreeSet<>(locales)));
+    if (bundle.namespaces().size() > MAX_BUNDLE_NAMESPACES
+        || bundle.locales().size() > MAX_BUNDLE_LOCALES) {
+      throw new IllegalArgumentException(
+          "Bundle may contain at most %d namespaces and %d locales"
+              .formatted(MAX_BUNDLE_NAMESPACES, MAX_BUNDLE_LOCALES));
+    }
+    final LocalisationSnapshot snapshot = localisationIndex.current();
+    final boolean gzip = acceptsGzip(acceptEncoding);
+    final String eTag = eTag(snapshot.eTag(bundle), gzip);
+    final CacheControl cacheControl = cacheControl(cache);
+    if (matches(ifNoneMatch, eTag)) {
+      return notModified(eTag, cacheControl);
+    }
+    final Payload localisations =
+        snapshot.serialized(
+            bundle, () -> serialize(generator -> write(generator, snapshot, bundle)));
+    if (localisations == null) {
+      stream(response, eTag, cacheControl, gzip, generator -> write(generator, snapshot, bundle));
+      return null;
+    }
+    return body(
+        ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_JSON)
+            .eTag(eTag)
+            .cacheControl(cacheControl),
+        localisations,
+        gzip);
+  }
+
+  private record Bundle(List<String> namespaces, List<String> locales) {}
+
+  private void write(
+      final JsonGenerator generator, final LocalisationSnapshot snapshot, final Bundle bundle)
+      throws IOException {
+    generator.writeStartObject();
+    for (final String namespace : bundle.namespaces()) {
+      generator.writeObjectFieldStart(namespace);
+      for (final String locale : bundle.locales()) {
+        generator.writeObjectFieldStart(locale);
+        for (final Localisation localisation : snapshot.file(namespace, locale)) {
+          generator.writeStringField(localisation.getKey(), localisation.getValue());
+        }
+        generator.writeEndObject();
+      }
+      generator.writeEndObject();
+    }
+    generator.writeEndObject();
+  }
+
+  private interface JsonWriter {
+    void write(JsonGenerator generator) throws IOException;
+  }
+
+  private byte[] serialize(final JsonWriter writer) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (final JsonGenerator generator = mapper.createGenerator(out)) {
+      writer.write(generator);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes a response that is not kept with the snapshot straight to the response body, without
+   * building it in memory first.
+   */
+  private void stream(
+      final HttpServletResponse response,
+      final String eTag,
+      final CacheControl cacheControl,
+      final boolean gzip,
+      final JsonWriter writer) {
+    response.setStatus(HttpStatus.OK.value());
+    response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+    response.setHeader(HttpHeaders.ETAG, eTag);
+    response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl.getHeaderValue());
+    response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    if (gzip) {
+      response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+    }
+    try {
+      final OutputStream body =
+          gzip ? new GZIPOutputStream(response.getOutputStream()) : response.getOutputStream();
+      try (final JsonGenerator generator = mapper.createGenerator(body)) {
+        writer.write(generator);
+      }
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private CacheControl cacheControl(final Boolean cache) {
+    return Boolean.FALSE.equals(cache)
+        ? CacheControl.noCache()
+        : CacheControl.maxAge(Duration.of(cacheMaxAgeMinutes, ChronoUnit.MINUTES)).cachePublic();
+  }
+
+  private static ResponseEntity<byte[]> notModified(
+      final String eTag, final CacheControl cacheControl) {
+    return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+        .eTag(eTag)
+        .varyBy(HttpHeaders.ACCEPT_ENCODING)
+        .cacheControl(cacheControl)
+        .build();
+  }
+
+  private byte[] serialize(final Collection<Localisation> localisations) {
+    try {
+      return mapper.writeValueAsBytes(localisations);
+    } catch (final JsonProcessingException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   @Operation(
       summary = "Create localisations",
       description =
-          "Creates new localisations. In qa & prod environments tries to import localisations to Tolgee, in other environments discards updates and returns 422 Unprocessable Content.")
+          "Creates new localisations. In qa & prod environments queues localisations to be imported to Tolgee and returns 202 Accepted with an import id for polling the status, in other environments discards updates and returns 422 Unprocessable Content.")
   @PostMapping("/update")
   @Secured({ROLE_UPDATE, ROLE_CRUD})
   public ResponseEntity<MassUpdateResult> update(
-      @RequestBody final Collection<Localisation> localisations) {
+      @RequestBody final Collection<Localisation> localisations, final Principal user) {
     final MassUpdateResult result = new MassUpdateResult();
     result.setStatus("OK");
     if (envName != null
@@ -124,15 +349,40 @@ public class LocalisationController extends ControllerBase implements Initializi
       result.setNotModified(localisations.size());
       return ResponseEntity.status(422).body(result);
     }
+    final List<Localisation> toImport = new ArrayList<>();
     for (final Localisation localisation : localisations) {
-      if (localisation.getId() == null && tolgee.importKey(localisation)) {
-        LOG.info("Imported localisation to Tolgee: {}", localisation);
-        result.incCreated();
+      if (localisation.getId() == null) {
+        if (StringUtils.isBlank(localisation.getKey())
+            || StringUtils.isBlank(localisation.getLocale())
+            || localisation.getValue() == null) {
+          throw new IllegalArgumentException(
+              "Localisation must have key, locale and value: " + localisation);
+        }
+        toImport.add(localisation);
       } else {
         LOG.info("Bypassed localisation update: {}", localisation);
         result.incNotModified();
       }
     }
-    return ResponseEntity.ok().body(result);
+    if (toImport.isEmpty()) {
+      return ResponseEntity.ok().body(result);
+    }
+    result.setImportId(
+        tolgeeImportQueue.enqueue(toImport, result.getNotModified(), user.getName()));
+    result.setStatus("Queued");
+    return ResponseEntity.accepted().body(result);
+  }
+
+  @Operation(
+      summary = "Status of localisations queued to be imported to Tolgee",
+      description =
+          "Status is 'Queued' while the import is in progress and 'OK' when it is done, counts include the localisations processed so far")
+  @GetMapping("/update/{id}")
+  @Secured({ROLE_UPDATE, ROLE_CRUD})
+  public ResponseEntity<MassUpdateResult> updateStatus(@PathVariable final Integer id) {
+    return tolgeeImportQueue
+        .status(id)
+        .map(ResponseEntity::ok)
+        .orElseGet(() -> ResponseEntity.notFound().build());
   }
 }
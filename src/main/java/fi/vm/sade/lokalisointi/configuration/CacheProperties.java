@@ -0,0 +1,52 @@
+package fi.vm.sade.lokalisointi.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Configuration
+@ConfigurationProperties(prefix = "lokalisointi")
+public class CacheProperties {
+  private Map<String, CacheSpec> caches = new LinkedHashMap<>();
+
+  public Map<String, CacheSpec> getCaches() {
+    return caches;
+  }
+
+  public void setCaches(final Map<String, CacheSpec> caches) {
+    this.caches = caches;
+  }
+
+  public static class CacheSpec {
+    private Duration expireAfterWrite;
+    private Duration refreshAfterWrite;
+    private Long maximumSize;
+
+    public Duration getExpireAfterWrite() {
+      return expireAfterWrite;
+    }
+
+    public void setExpireAfterWrite(final Duration expireAfterWrite) {
+      this.expireAfterWrite = expireAfterWrite;
+    }
+
+    public Duration getRefreshAfterWrite() {
+      return refreshAfterWrite;
+    }
+
+    public void setRefreshAfterWrite(final Duration refreshAfterWrite) {
+      this.refreshAfterWrite = refreshAfterWrite;
+    }
+
+    public Long getMaximumSize() {
+      return maximumSize;
+    }
+
+    public void setMaximumSize(final Long maximumSize) {
+      this.maximumSize = maximumSize;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package fi.vm.sade.lokalisointi.configuration;
+
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+/**
+ * One pooled HTTP client for outgoing calls to Tolgee and to other environments, configured under
+ * lokalisointi.http-client. Connections are kept alive and reused between requests, the pool is
+ * exposed as httpcomponents.httpclient.pool metrics.
+ */
+@Configuration
+public class HttpClientConfiguration {
+  private static final Logger LOG = LoggerFactory.getLogger(HttpClientConfiguration.class);
+
+  @Bean
+  public PoolingHttpClientConnectionManager httpClientConnectionManager(
+      final HttpClientProperties properties) {
+    LOG.info(
+        "HTTP client pool: {} connections, {} per route",
+        properties.getMaxConnectionsTotal(),
+        properties.getMaxConnectionsPerRoute());
+    return PoolingHttpClientConnectionManagerBuilder.create()
+        .setMaxConnTotal(properties.getMaxConnectionsTotal())
+        .setMaxConnPerRoute(properties.getMaxConnectionsPerRoute())
+        .setDefaultConnectionConfig(
+            ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.of(properties.getConnectTimeout()))
+                .setSocketTimeout(Timeout.of(properties.getResponseTimeout()))
+                .setTimeToLive(TimeValue.of(properties.getTimeToLive()))
+                .build())
+        .build();
+  }
+
+  @Bean
+  public CloseableHttpClient httpClient(
+      final PoolingHttpClientConnectionManager connectionManager,
+      final HttpClientProperties properties) {
+    return HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(
+            RequestConfig.custom()
+                .setConnectionRequestTimeout(
+                    Timeout.of(properties.getConnectionRequestTimeout()))
+                .setResponseTimeout(Timeout.of(properties.getResponseTimeout()))
+                .build())
+        .evictExpiredConnections()
+        .evictIdleConnections(TimeValue.of(properties.getIdleTimeout()))
+        .build();
+  }
+
+  @Bean
+  public ClientHttpRequestFactory clientHttpRequestFactory(final CloseableHttpClient httpClient) {
+    return new HttpComponentsClientHttpRequestFactory(httpClient);
+  }
+
+  @Bean
+  public MeterBinder httpClientConnectionPoolMetrics(
+      final PoolingHttpClientConnectionManager connectionManager) {
+    return new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "lokalisointi");
+  }
+}
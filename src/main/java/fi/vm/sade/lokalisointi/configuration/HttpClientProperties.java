@@ -0,0 +1,74 @@
+package fi.vm.sade.lokalisointi.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+@ConfigurationProperties(prefix = "lokalisointi.http-client")
+public class HttpClientProperties {
+  private int maxConnectionsTotal = 50;
+  private int maxConnectionsPerRoute = 10;
+  private Duration connectTimeout = Duration.ofSeconds(5);
+  private Duration responseTimeout = Duration.ofSeconds(30);
+  private Duration connectionRequestTimeout = Duration.ofSeconds(10);
+  private Duration idleTimeout = Duration.ofMinutes(1);
+  private Duration timeToLive = Duration.ofMinutes(5);
+
+  public int getMaxConnectionsTotal() {
+    return maxConnectionsTotal;
+  }
+
+  public void setMaxConnectionsTotal(final int maxConnectionsTotal) {
+    this.maxConnectionsTotal = maxConnectionsTotal;
+  }
+
+  public int getMaxConnectionsPerRoute() {
+    return maxConnectionsPerRoute;
+  }
+
+  public void setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+    this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+  }
+
+  public Duration getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public void setConnectTimeout(final Duration connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public Duration getResponseTimeout() {
+    return responseTimeout;
+  }
+
+  public void setResponseTimeout(final Duration responseTimeout) {
+    this.responseTimeout = responseTimeout;
+  }
+
+  public Duration getConnectionRequestTimeout() {
+    return connectionRequestTimeout;
+  }
+
+  public void setConnectionRequestTimeout(final Duration connectionRequestTimeout) {
+    this.connectionRequestTimeout = connectionRequestTimeout;
+  }
+
+  public Duration getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  public void setIdleTimeout(final Duration idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  public Duration getTimeToLive() {
+    return timeToLive;
+  }
+
+  public void setTimeToLive(final Duration timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+}
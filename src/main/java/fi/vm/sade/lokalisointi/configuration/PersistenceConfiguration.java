@@ -1,12 +1,17 @@
 package fi.vm.sade.lokalisointi.configuration;
 
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import fi.vm.sade.lokalisointi.model.OphEnvironment;
 import fi.vm.sade.lokalisointi.storage.ExtendedDokumenttipalvelu;
+import fi.vm.sade.lokalisointi.storage.RemoteEnvironments;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.EnableCaching;
-import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.annotation.Bean;
@@ -18,6 +23,8 @@ import org.springframework.data.relational.core.mapping.event.RelationalEvent;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
+import java.util.Map;
+
 @Configuration
 @EnableJdbcRepositories
 @EnableTransactionManagement
@@ -44,8 +51,46 @@ public class PersistenceConfiguration extends AbstractJdbcConfiguration {
     return new ExtendedDokumenttipalvelu(region, bucketName);
   }
 
+  /**
+   * Caches configured under lokalisointi.caches. Caches with a loader (available namespaces of
+   * other environments) may be refreshed asynchronously after refresh-after-write while the
+   * previous value is still served. The S3 listing ("find") has no loader nor expiry, it is loaded
+   * on first use and then only replaced by S3.refreshFindCache.
+   */
   @Bean
-  public CacheManager cacheManager() {
-    return new ConcurrentMapCacheManager("find");
+  public CacheManager cacheManager(
+      final CacheProperties cacheProperties,
+      final ObjectProvider<RemoteEnvironments> remoteEnvironments) {
+    final Map<String, CacheLoader<Object, Object>> loaders =
+        Map.of(
+            "available-namespaces",
+            key -> remoteEnvironments.getObject().fetchAvailableNamespaces((OphEnvironment) key));
+    final CaffeineCacheManager cacheManager = new CaffeineCacheManager();
+    cacheManager.setCaffeine(Caffeine.newBuilder().recordStats());
+    cacheManager.setAllowNullValues(false);
+    cacheProperties
+        .getCaches()
+        .forEach(
+            (name, spec) -> {
+              final Caffeine<Object, Object> builder = Caffeine.newBuilder().recordStats();
+              if (spec.getExpireAfterWrite() != null) {
+                builder.expireAfterWrite(spec.getExpireAfterWrite());
+              }
+              if (spec.getMaximumSize() != null) {
+                builder.maximumSize(spec.getMaximumSize());
+              }
+              final CacheLoader<Object, Object> loader = loaders.get(name);
+              if (spec.getRefreshAfterWrite() != null) {
+                if (loader == null) {
+                  throw new IllegalStateException(
+                      "Cache %s has refresh-after-write but no loader".formatted(name));
+                }
+                builder.refreshAfterWrite(spec.getRefreshAfterWrite());
+              }
+              LOG.info("Configuring cache {}: {}", name, builder);
+              cacheManager.registerCustomCache(
+                  name, loader != null ? builder.build(loader) : builder.build());
+            });
+    return cacheManager;
   }
 }
@@ -156,8 +156,11 @@ public class SecurityConfiguration implements InitializingBean {
             "/cxf/rest/v1/localisation/",
             "/api/v1/localisation",
             "/api/v1/localisation/",
+            "/api/v1/localisation/bundle",
+            "/cxf/rest/v1/localisation/bundle",
             "/api/v1/copy/localisation-files",
             "/api/v1/copy/available-namespaces",
+            "/api/v1/copy/manifest",
             "/tolgee/*.json",
             "/tolgee/*/*.json",
             "/error",
@@ -198,7 +201,9 @@ public class SecurityConfiguration implements InitializingBean {
       config.setMaxAge(1728000L);
 
       source.registerCorsConfiguration("/api/v1/localisation**", config);
+      source.registerCorsConfiguration("/api/v1/localisation/bundle", config);
       source.registerCorsConfiguration("/cxf/rest/v1/localisation**", config);
+      source.registerCorsConfiguration("/cxf/rest/v1/localisation/bundle", config);
       source.registerCorsConfiguration("/tolgee/**", config);
       httpSecurityCorsConfigurer.configurationSource(source);
     };
@@ -0,0 +1,45 @@
+package fi.vm.sade.lokalisointi.model;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceCreator;
+
+import java.time.LocalDateTime;
+
+@Data
+@AllArgsConstructor(access = AccessLevel.PRIVATE, onConstructor = @__(@PersistenceCreator))
+public class CopyJob {
+  public enum State {
+    RUNNING,
+    FAILED,
+    COMPLETED
+  }
+
+  private @Id @With Integer id;
+  @NonNull private OphEnvironment source;
+
+  /** Copied namespaces separated by commas or null if all namespaces are copied. */
+  private String namespaces;
+
+  @NonNull private State state;
+  private int totalFiles;
+  private int copiedFiles;
+  @NonNull private String createdBy;
+
+  @NonNull private LocalDateTime created;
+  @NonNull private LocalDateTime updated;
+
+  public CopyJob() {}
+
+  public CopyJob(
+      @NonNull final OphEnvironment source,
+      final String namespaces,
+      @NonNull final String createdBy) {
+    this.source = source;
+    this.namespaces = namespaces;
+    this.state = State.RUNNING;
+    this.createdBy = createdBy;
+    this.created = LocalDateTime.now();
+    this.updated = LocalDateTime.now();
+  }
+}
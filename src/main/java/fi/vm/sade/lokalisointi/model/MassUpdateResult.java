@@ -1,5 +1,6 @@
 package fi.vm.sade.lokalisointi.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.Data;
 
 @Data
@@ -9,6 +10,10 @@ public class MassUpdateResult {
   private Integer updated = 0;
   private String status;
 
+  /** Id of the queued Tolgee import, for polling its status. */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private Integer importId;
+
   public void incNotModified() {
     notModified++;
   }
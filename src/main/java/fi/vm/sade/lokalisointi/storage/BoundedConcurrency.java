@@ -0,0 +1,87 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs asynchronous tasks for a list of items so that at most a given number of them are in flight
+ * at the same time. A new task is started when a previous one completes, no thread is blocked while
+ * waiting.
+ */
+final class BoundedConcurrency {
+  private BoundedConcurrency() {}
+
+  static <T, R> CompletableFuture<List<R>> map(
+      final List<T> items,
+      final int maxInFlight,
+      final Function<T, CompletableFuture<R>> task) {
+    final Pipeline<T, R> pipeline = new Pipeline<>(items, Math.max(maxInFlight, 1), task);
+    pipeline.drain();
+    return CompletableFuture.allOf(pipeline.results.toArray(CompletableFuture[]::new))
+        .thenApply(v -> pipeline.results.stream().map(CompletableFuture::join).toList());
+  }
+
+  /**
+   * Tasks are started in a loop by one thread at a time. A task completing while another thread is
+   * starting tasks only asks that thread to check again, so tasks completing synchronously do not
+   * nest calls.
+   */
+  private static final class Pipeline<T, R> {
+    private final List<T> items;
+    private final int maxInFlight;
+    private final Function<T, CompletableFuture<R>> task;
+    private final List<CompletableFuture<R>> results;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger drainRequests = new AtomicInteger();
+
+    /** Index of the next item, only accessed by the thread draining. */
+    private int next;
+
+    private Pipeline(
+        final List<T> items,
+        final int maxInFlight,
+        final Function<T, CompletableFuture<R>> task) {
+      this.items = items;
+      this.maxInFlight = maxInFlight;
+      this.task = task;
+      this.results = items.stream().map(item -> new CompletableFuture<R>()).toList();
+    }
+
+    private void drain() {
+      if (drainRequests.getAndIncrement() != 0) {
+        return;
+      }
+      int requests = 1;
+      do {
+        while (next < items.size() && inFlight.get() < maxInFlight) {
+          inFlight.incrementAndGet();
+          start(next++);
+        }
+        requests = drainRequests.addAndGet(-requests);
+      } while (requests != 0);
+    }
+
+    private void start(final int index) {
+      final CompletableFuture<R> started;
+      try {
+        started = task.apply(items.get(index));
+      } catch (final RuntimeException e) {
+        results.get(index).completeExceptionally(e);
+        inFlight.decrementAndGet();
+        return;
+      }
+      started.whenComplete(
+          (result, error) -> {
+            inFlight.decrementAndGet();
+            if (error != null) {
+              results.get(index).completeExceptionally(error);
+            } else {
+              results.get(index).complete(result);
+            }
+            drain();
+          });
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import fi.vm.sade.lokalisointi.model.CopyJob;
+import fi.vm.sade.lokalisointi.model.OphEnvironment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.jdbc.core.JdbcAggregateTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Progress of copying localisations from other environments. A job is checkpointed after each
+ * transferred batch of files, an unfinished job is continued by the next copy with the same source
+ * and namespaces. Only one job with the same source and namespaces runs at a time.
+ */
+@Repository
+public class CopyJobs {
+  private static final Logger LOG = LoggerFactory.getLogger(CopyJobs.class);
+  private final JdbcAggregateTemplate template;
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+
+  /** A running job that has not been checkpointed for this long is assumed to have died. */
+  @Value("${lokalisointi.copy.stale-after-ms:600000}")
+  private Long staleAfterMs;
+
+  @Autowired
+  public CopyJobs(
+      final JdbcAggregateTemplate template,
+      final JdbcTemplate jdbcTemplate,
+      final TransactionTemplate transactionTemplate) {
+    this.template = template;
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionTemplate = transactionTemplate;
+  }
+
+  /**
+   * @param remainingFiles number of files still to be copied
+   * @return the latest unfinished job with same source and namespaces or a new job
+   * @throws IllegalStateException if a job with same source and namespaces is already running
+   */
+  public CopyJob start(
+      final OphEnvironment source,
+      final Collection<String> namespaces,
+      final String createdBy,
+      final int remainingFiles) {
+    final String namespacesValue = namespacesValue(namespaces);
+    try {
+      return transactionTemplate.execute(
+          status -> {
+            final List<Integer> unfinished =
+                jdbcTemplate.queryForList(
+                    """
+                    SELECT id FROM copy_job
+                    WHERE source = ? AND namespaces IS NOT DISTINCT FROM ? AND state <> ?
+                    ORDER BY id DESC LIMIT 1 FOR UPDATE""",
+                    Integer.class,
+                    source.name(),
+                    namespacesValue,
+                    CopyJob.State.COMPLETED.name());
+            if (unfinished.isEmpty()) {
+              final CopyJob job = new CopyJob(source, namespacesValue, createdBy);
+              job.setTotalFiles(remainingFiles);
+              return template.insert(job);
+            }
+            final CopyJob job = template.findById(unfinished.getFirst(), CopyJob.class);
+            if (job.getState() == CopyJob.State.RUNNING
+                && job.getUpdated()
+                    .isAfter(LocalDateTime.now().minus(Duration.ofMillis(staleAfterMs)))) {
+              throw new IllegalStateException(
+                  "Copy job %d from %s is already running".formatted(job.getId(), source));
+            }
+            LOG.info(
+                "Resuming {} copy job {}, {} files were copied before",
+                job.getState(),
+                job.getId(),
+                job.getCopiedFiles());
+            job.setState(CopyJob.State.RUNNING);
+            job.setTotalFiles(job.getCopiedFiles() + remainingFiles);
+            job.setUpdated(LocalDateTime.now());
+            return template.update(job);
+          });
+    } catch (final DuplicateKeyException e) {
+      // another node started the same copy at the same time
+      throw new IllegalStateException("Copy from %s is already running".formatted(source), e);
+    }
+  }
+
+  /** Records that given number of files have been copied. */
+  public CopyJob checkpoint(final CopyJob job, final int copied) {
+    job.setCopiedFiles(job.getCopiedFiles() + copied);
+    job.setUpdated(LocalDateTime.now());
+    return template.update(job);
+  }
+
+  public CopyJob finish(final CopyJob job, final CopyJob.State state) {
+    LOG.info(
+        "Copy job {} {}, {}/{} files copied",
+        job.getId(),
+        state,
+        job.getCopiedFiles(),
+        job.getTotalFiles());
+    job.setState(state);
+    job.setUpdated(LocalDateTime.now());
+    return template.update(job);
+  }
+
+  /**
+   * Completes failed jobs with same source and namespaces, when there is nothing left to copy for
+   * them.
+   */
+  public void completeFailed(final OphEnvironment source, final Collection<String> namespaces) {
+    final int completed =
+        jdbcTemplate.update(
+            """
+            UPDATE copy_job SET state = ?, updated = now()
+            WHERE source = ? AND namespaces IS NOT DISTINCT FROM ? AND state = ?""",
+            CopyJob.State.COMPLETED.name(),
+            source.name(),
+            namespacesValue(namespaces),
+            CopyJob.State.FAILED.name());
+    if (completed > 0) {
+      LOG.info("Completed {} failed copy jobs from {}, nothing left to copy", completed, source);
+    }
+  }
+
+  private static String namespacesValue(final Collection<String> namespaces) {
+    return namespaces == null || namespaces.isEmpty()
+        ? null
+        : namespaces.stream()
+            .map(ns -> Objects.requireNonNullElse(ns, ""))
+            .sorted()
+            .distinct()
+            .collect(Collectors.joining(","));
+  }
+}
@@ -2,44 +2,68 @@ package fi.vm.sade.lokalisointi.storage;
 
 import fi.vm.sade.lokalisointi.model.Localisation;
 import fi.vm.sade.lokalisointi.model.LocalisationOverride;
-import org.apache.commons.lang3.tuple.ImmutableTriple;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.data.jdbc.core.JdbcAggregateTemplate;
+import org.springframework.data.relational.core.query.Criteria;
+import org.springframework.data.relational.core.query.Query;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Repository;
 
+import java.sql.Timestamp;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.function.UnaryOperator;
 import java.util.stream.StreamSupport;
 
-import static java.util.stream.Collectors.groupingBy;
+import static fi.vm.sade.lokalisointi.storage.LocalisationsChangedEvent.Source.OVERRIDES;
 
+/**
+ * Localisation overrides. All overrides are loaded to memory once and kept up to date on writes, so
+ * reads never go to the database. Changes made by other nodes are loaded when they are announced.
+ * The latest removal of an override from each localisation file is recorded, so that the last
+ * modified time of a file does not go back when its overrides are removed.
+ */
 @Repository
 @Profile("!test")
 public class Database {
   private static final Logger LOG = LoggerFactory.getLogger(Database.class);
   protected final JdbcAggregateTemplate template;
+  protected final JdbcTemplate jdbcTemplate;
+  private final ApplicationEventPublisher eventPublisher;
+  private volatile Overrides overrides;
 
   @Autowired
-  protected Database(final JdbcAggregateTemplate template) {
+  protected Database(
+      final JdbcAggregateTemplate template,
+      final JdbcTemplate jdbcTemplate,
+      final ApplicationEventPublisher eventPublisher) {
     this.template = template;
+    this.jdbcTemplate = jdbcTemplate;
+    this.eventPublisher = eventPublisher;
   }
 
   public LocalisationOverride saveOverride(
       final Localisation localisation, final String createdBy) {
     LOG.debug("Saving localisation override: {}", localisation);
-    return template.insert(
-        new LocalisationOverride(
-            localisation.getNamespace(),
-            localisation.getLocale(),
-            localisation.getKey(),
-            localisation.getValue(),
-            createdBy,
-            createdBy));
+    final LocalisationOverride saved =
+        template.insert(
+            new LocalisationOverride(
+                localisation.getNamespace(),
+                localisation.getLocale(),
+                localisation.getKey(),
+                localisation.getValue(),
+                createdBy,
+                createdBy));
+    overridesChanged(current -> current.with(saved), List.of(OverrideKey.of(saved)));
+    return saved;
   }
 
   public LocalisationOverride updateOverride(
@@ -47,105 +71,206 @@ public class Database {
     final LocalisationOverride existing = template.findById(id, LocalisationOverride.class);
     LOG.debug("Updating existing localisation override with id {}: {}", id, existing);
     if (existing != null) {
+      final OverrideKey previous = OverrideKey.of(existing);
       existing.setNamespace(localisation.getNamespace());
       existing.setLocale(localisation.getLocale());
       existing.setKey(localisation.getKey());
       existing.setValue(localisation.getValue());
       existing.setUpdatedBy(updatedBy);
       existing.setUpdated(LocalDateTime.now());
-      return template.update(existing);
+      final LocalisationOverride updated = template.update(existing);
+      final OverrideRemoval removal =
+          Objects.equals(previous.namespace(), updated.getNamespace())
+                  && previous.locale().equals(updated.getLocale())
+              ? null
+              : recordRemoval(previous.namespace(), previous.locale());
+      overridesChanged(
+          current -> current.with(updated).removing(removal),
+          List.of(previous, OverrideKey.of(updated)));
+      return updated;
     } else {
       return saveOverride(localisation, updatedBy);
     }
   }
 
-  public Collection<Localisation> withOverrides(
-      final Collection<Localisation> localisations,
-      final String namespace,
-      final String locale,
-      final String key) {
-    final Map<ImmutableTriple<String, String, String>, List<LocalisationOverride>>
-        indexedOverrides =
+  public void deleteOverride(final Integer id) {
+    final LocalisationOverride override = template.findById(id, LocalisationOverride.class);
+    if (override != null) {
+      template.delete(override);
+      final OverrideRemoval removal = recordRemoval(override.getNamespace(), override.getLocale());
+      overridesChanged(
+          current -> current.without(id).removing(removal), List.of(OverrideKey.of(override)));
+    }
+  }
+
+  private OverrideRemoval recordRemoval(final String namespace, final String locale) {
+    final Timestamp removed =
+        jdbcTemplate.queryForObject(
+            """
+            INSERT INTO localisation_override_removal (namespace, locale) VALUES (?, ?)
+            ON CONFLICT ((COALESCE(namespace, '')), locale) DO UPDATE SET removed = now()
+            RETURNING removed""",
+            Timestamp.class,
+            namespace,
+            locale);
+    return new OverrideRemoval(namespace, locale, removed.toInstant());
+  }
+
+  private List<OverrideRemoval> loadRemovals() {
+    return jdbcTemplate.query(
+        "SELECT namespace, locale, removed FROM localisation_override_removal",
+        (rs, rowNum) ->
+            new OverrideRemoval(
+                rs.getString("namespace"),
+                rs.getString("locale"),
+                rs.getTimestamp("removed").toInstant()));
+  }
+
+  private void overridesChanged(
+      final UnaryOperator<Overrides> change, final Collection<OverrideKey> changed) {
+    synchronized (this) {
+      overrides = change.apply(overrides());
+    }
+    eventPublisher.publishEvent(new LocalisationsChangedEvent(OVERRIDES, false, changed));
+  }
+
+  private Overrides overrides() {
+    final Overrides current = overrides;
+    return current != null ? current : reload();
+  }
+
+  /** Reloads all overrides from the database. */
+  protected synchronized Overrides reload() {
+    final Overrides loaded =
+        new Overrides(
             StreamSupport.stream(template.findAll(LocalisationOverride.class).spliterator(), false)
-                .filter(
-                    l ->
-                        namespace == null
-                            || (l.getNamespace() != null && l.getNamespace().equals(namespace)))
-                .filter(l -> locale == null || l.getLocale().equals(locale))
-                .filter(l -> key == null || l.getKey().equals(key))
-                .collect(
-                    groupingBy(
-                        localisationOverride ->
-                            uniqueKey(
-                                localisationOverride.getNamespace(),
-                                localisationOverride.getKey(),
-                                localisationOverride.getLocale())));
-
-    // replace localisations with overrides
-    final List<Localisation> overriddenLocalisations =
-        localisations.stream()
-            .map(
-                localisation -> {
-                  final ImmutableTriple<String, String, String> uKey =
-                      uniqueKey(
-                          localisation.getNamespace(),
-                          localisation.getKey(),
-                          localisation.getLocale());
-                  if (indexedOverrides.containsKey(uKey)) {
-                    return indexedOverrides.get(uKey).getFirst().toLocalisation();
-                  }
-                  return localisation;
-                })
-            .toList();
-
-    final Set<ImmutableTriple<String, String, String>> nonOverridingLocalisationOverrides =
-        new HashSet<>(indexedOverrides.keySet());
-    nonOverridingLocalisationOverrides.removeAll(
-        overriddenLocalisations.stream()
-            .map(
-                localisation ->
-                    uniqueKey(
-                        localisation.getNamespace(),
-                        localisation.getKey(),
-                        localisation.getLocale()))
-            .collect(Collectors.toSet()));
-
-    // return also non-overriding localisation overrides
-    return Stream.concat(
-            overriddenLocalisations.stream(),
-            nonOverridingLocalisationOverrides.stream()
-                .map(k -> indexedOverrides.get(k).getFirst().toLocalisation()))
-        .toList();
+                .toList(),
+            loadRemovals());
+    LOG.debug("Loaded {} localisation overrides", loaded.byId.size());
+    overrides = loaded;
+    return loaded;
   }
 
-  private ImmutableTriple<String, String, String> uniqueKey(
-      final String namespace, final String key, final String locale) {
-    return new ImmutableTriple<>(namespace, key, locale);
+  /** Reloads overrides with given keys from the database, leaving the rest as they are. */
+  protected synchronized void reload(final Collection<OverrideKey> keys) {
+    final List<LocalisationOverride> loaded = new ArrayList<>();
+    keys.forEach(
+        key -> template.findAll(byKey(key), LocalisationOverride.class).forEach(loaded::add));
+    LOG.debug("Reloaded {} localisation overrides for {}", loaded.size(), keys);
+    overrides = overrides().replacing(keys, loaded, loadRemovals());
   }
 
-  public void deleteOverride(final Integer id) {
-    final LocalisationOverride override = template.findById(id, LocalisationOverride.class);
-    if (override != null) {
-      template.delete(override);
+  /** Query by unique key, answered with the localisation_unique_key_check index. */
+  private static Query byKey(final OverrideKey key) {
+    final Criteria namespace =
+        key.namespace() != null
+            ? Criteria.where("namespace").is(key.namespace())
+            : Criteria.where("namespace").isNull();
+    return Query.query(namespace.and("key").is(key.key()).and("locale").is(key.locale()));
+  }
+
+  /** Reloads overrides changed by another node before the localisation index is rebuilt. */
+  @EventListener
+  @Order(Ordered.HIGHEST_PRECEDENCE)
+  public void localisationsChanged(final LocalisationsChangedEvent event) {
+    if (event.remote() && event.source() == OVERRIDES) {
+      if (event.overrides().isEmpty()) {
+        reload();
+      } else {
+        reload(event.overrides());
+      }
     }
   }
 
   public Collection<Localisation> getById(final Integer id) {
-    final LocalisationOverride localisationOverride =
-        template.findById(id, LocalisationOverride.class);
+    final LocalisationOverride localisationOverride = overrides().byId.get(id);
     if (localisationOverride != null) {
       return List.of(localisationOverride.toLocalisation());
     } else return List.of();
   }
 
   public Collection<LocalisationOverride> find() {
-    return StreamSupport.stream(template.findAll(LocalisationOverride.class).spliterator(), false)
+    return overrides().byId.values();
+  }
+
+  /** Find overrides, null parameters match everything. */
+  public Collection<LocalisationOverride> find(
+      final String namespace, final String locale, final String key) {
+    final Overrides current = overrides();
+    final Collection<LocalisationOverride> candidates =
+        namespace != null
+            ? current.byNamespace.getOrDefault(namespace, List.of())
+            : current.byId.values();
+    return candidates.stream()
+        .filter(o -> locale == null || locale.equals(o.getLocale()))
+        .filter(o -> key == null || key.equals(o.getKey()))
         .toList();
   }
 
   public Set<String> availableNamespaces() {
-    return StreamSupport.stream(template.findAll(LocalisationOverride.class).spliterator(), false)
-        .map(LocalisationOverride::getNamespace)
-        .collect(Collectors.toSet());
+    return overrides().byNamespace.keySet();
+  }
+
+  /** Latest removal of an override from each localisation file. */
+  public Collection<OverrideRemoval> removals() {
+    return overrides().removals.values();
+  }
+
+  private record FileKey(String namespace, String locale) {}
+
+  /** Immutable view of all overrides, in id order and by namespace, and removals by file. */
+  private static final class Overrides {
+    private final Map<Integer, LocalisationOverride> byId;
+    private final Map<String, List<LocalisationOverride>> byNamespace;
+    private final Map<FileKey, OverrideRemoval> removals;
+
+    private Overrides(
+        final Collection<LocalisationOverride> overrides,
+        final Collection<OverrideRemoval> removals) {
+      final Map<Integer, LocalisationOverride> ids = new TreeMap<>();
+      overrides.forEach(o -> ids.put(o.getId(), o));
+      final Map<String, List<LocalisationOverride>> namespaces = new HashMap<>();
+      ids.values()
+          .forEach(
+              o -> namespaces.computeIfAbsent(o.getNamespace(), n -> new ArrayList<>()).add(o));
+      namespaces.replaceAll((namespace, list) -> Collections.unmodifiableList(list));
+      final Map<FileKey, OverrideRemoval> files = new HashMap<>();
+      removals.forEach(r -> files.put(new FileKey(r.namespace(), r.locale()), r));
+      this.byId = Collections.unmodifiableMap(ids);
+      this.byNamespace = Collections.unmodifiableMap(namespaces);
+      this.removals = Collections.unmodifiableMap(files);
+    }
+
+    private Overrides with(final LocalisationOverride override) {
+      final Map<Integer, LocalisationOverride> ids = new HashMap<>(byId);
+      ids.put(override.getId(), override);
+      return new Overrides(ids.values(), removals.values());
+    }
+
+    private Overrides replacing(
+        final Collection<OverrideKey> keys,
+        final Collection<LocalisationOverride> loaded,
+        final Collection<OverrideRemoval> loadedRemovals) {
+      final Map<Integer, LocalisationOverride> ids = new HashMap<>(byId);
+      ids.values().removeIf(o -> keys.contains(OverrideKey.of(o)));
+      loaded.forEach(o -> ids.put(o.getId(), o));
+      return new Overrides(ids.values(), loadedRemovals);
+    }
+
+    private Overrides without(final Integer id) {
+      final Map<Integer, LocalisationOverride> ids = new HashMap<>(byId);
+      ids.remove(id);
+      return new Overrides(ids.values(), removals.values());
+    }
+
+    /** Records a removal, null changes nothing. */
+    private Overrides removing(final OverrideRemoval removal) {
+      if (removal == null) {
+        return this;
+      }
+      final Map<FileKey, OverrideRemoval> files = new HashMap<>(removals);
+      files.put(new FileKey(removal.namespace(), removal.locale()), removal);
+      return new Overrides(byId.values(), files.values());
+    }
   }
 }
@@ -4,17 +4,19 @@ import fi.vm.sade.valinta.dokumenttipalvelu.Dokumenttipalvelu;
 import fi.vm.sade.valinta.dokumenttipalvelu.dto.ObjectMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.CachePut;
 import org.springframework.cache.annotation.Cacheable;
-import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.core.internal.async.InputStreamResponseTransformer;
-import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
-import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 
-import java.time.Instant;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Extending dokumenttipalvelu to get more metadata from S3 object, most likely for a short period
@@ -29,34 +31,42 @@ public class ExtendedDokumenttipalvelu extends Dokumenttipalvelu {
     this.bucketName = bucketName;
   }
 
-  public ResponseInputStream<GetObjectResponse> getObject(
-      final String key, final String ifNoneMatch, final Instant ifModifiedSince) {
+  public CompletableFuture<ResponseBytes<GetObjectResponse>> getObjectBytes(final String key) {
     return getClient()
         .getObject(
-            GetObjectRequest.builder()
-                .bucket(bucketName)
-                .key(key)
-                .ifNoneMatch(ifNoneMatch)
-                .ifModifiedSince(ifModifiedSince)
-                .build(),
-            new InputStreamResponseTransformer<>())
-        .join();
+            GetObjectRequest.builder().bucket(bucketName).key(key).build(),
+            AsyncResponseTransformer.toBytes());
   }
 
-  public HeadObjectResponse getHead(final String key) {
+  /** Deletes up to 1000 objects with one request, only failed deletions are reported. */
+  public CompletableFuture<DeleteObjectsResponse> deleteObjects(final Collection<String> keys) {
     return getClient()
-        .headObject(HeadObjectRequest.builder().bucket(bucketName).key(key).build())
-        .join();
+        .deleteObjects(
+            DeleteObjectsRequest.builder()
+                .bucket(bucketName)
+                .delete(
+                    Delete.builder()
+                        .objects(
+                            keys.stream()
+                                .map(key -> ObjectIdentifier.builder().key(key).build())
+                                .toList())
+                        .quiet(true)
+                        .build())
+                .build());
   }
 
+  /** Loaded on first use only, afterwards the cached listing is replaced by updateFindCache. */
   @Cacheable(value = "find", sync = true)
   public Collection<ObjectMetadata> cachedFind(final Collection<String> terms) {
     LOG.info("Searching for {}", terms);
     return find(terms);
   }
 
-  @CacheEvict(value = "find", allEntries = true)
-  public void emptyFindCache() {
-    LOG.debug("Emptying find cache");
+  /** Replaces cached search results without emptying the cache first. */
+  @CachePut(value = "find", key = "#terms")
+  public Collection<ObjectMetadata> updateFindCache(
+      final Collection<String> terms, final Collection<ObjectMetadata> objects) {
+    LOG.debug("Updating find cache for {}", terms);
+    return objects;
   }
 }
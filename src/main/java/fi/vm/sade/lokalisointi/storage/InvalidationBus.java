@@ -0,0 +1,198 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.UUID;
+
+import static fi.vm.sade.lokalisointi.storage.LocalisationsChangedEvent.Source.LOCALISATION_FILES;
+import static fi.vm.sade.lokalisointi.storage.LocalisationsChangedEvent.Source.OVERRIDES;
+
+/**
+ * Announces localisation changes made by this node to the other nodes of the cluster with Postgres
+ * NOTIFY and listens to their announcements with LISTEN. Notifications are received on a dedicated
+ * connection that is not taken from the connection pool. Changes in localisation files make the
+ * receiving node refresh its S3 listing, changes in overrides are published as remote {@link
+ * LocalisationsChangedEvent}s.
+ */
+@Component
+public class InvalidationBus implements SmartLifecycle {
+  private static final Logger LOG = LoggerFactory.getLogger(InvalidationBus.class);
+  static final String CHANNEL = "lokalisointi_changes";
+  // notification payloads must be shorter than 8000 bytes
+  private static final int MAX_PAYLOAD_LENGTH = 7000;
+  private static final TypeReference<List<OverrideKey>> OVERRIDE_KEYS = new TypeReference<>() {};
+  private final ObjectMapper mapper = JsonMapper.builder().build();
+  private final String nodeId = UUID.randomUUID().toString();
+  private final JdbcTemplate jdbcTemplate;
+  private final DataSourceProperties dataSourceProperties;
+  private final ApplicationEventPublisher eventPublisher;
+  private final S3 s3;
+  private volatile Thread listener;
+
+  @Value("${lokalisointi.invalidation.enabled:true}")
+  private Boolean enabled;
+
+  @Value("${lokalisointi.invalidation.reconnect-delay-ms:5000}")
+  private Long reconnectDelayMs;
+
+  @Autowired
+  public InvalidationBus(
+      final JdbcTemplate jdbcTemplate,
+      final DataSourceProperties dataSourceProperties,
+      final ApplicationEventPublisher eventPublisher,
+      final S3 s3) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.dataSourceProperties = dataSourceProperties;
+    this.eventPublisher = eventPublisher;
+    this.s3 = s3;
+  }
+
+  @EventListener
+  public void localisationsChanged(final LocalisationsChangedEvent event) {
+    if (!enabled || event.remote()) {
+      return;
+    }
+    LOG.debug("Announcing change in {} to other nodes", event.source());
+    try {
+      final String payload = payload(event);
+      jdbcTemplate.execute(
+          "SELECT pg_notify(?, ?)",
+          (PreparedStatementCallback<Boolean>)
+              ps -> {
+                ps.setString(1, CHANNEL);
+                ps.setString(2, payload);
+                return ps.execute();
+              });
+    } catch (final RuntimeException e) {
+      // other nodes will notice the change on their next scheduled refresh
+      LOG.warn("Could not announce change in {} to other nodes", event.source(), e);
+    }
+  }
+
+  /**
+   * Payload is node id:source, followed by :changed override keys as JSON if they are known and
+   * fit in a notification.
+   */
+  private String payload(final LocalisationsChangedEvent event) {
+    final String payload = "%s:%s".formatted(nodeId, event.source());
+    if (event.overrides().isEmpty()) {
+      return payload;
+    }
+    try {
+      final String withKeys =
+          "%s:%s".formatted(payload, mapper.writeValueAsString(event.overrides()));
+      return withKeys.length() <= MAX_PAYLOAD_LENGTH ? withKeys : payload;
+    } catch (final JsonProcessingException e) {
+      return payload;
+    }
+  }
+
+  void received(final String payload) {
+    final String[] parts = payload.split(":", 3);
+    if (parts.length < 2 || parts[0].equals(nodeId)) {
+      return;
+    }
+    final LocalisationsChangedEvent.Source source;
+    final List<OverrideKey> overrides;
+    try {
+      source = LocalisationsChangedEvent.Source.valueOf(parts[1]);
+      overrides = parts.length > 2 ? mapper.readValue(parts[2], OVERRIDE_KEYS) : List.of();
+    } catch (final IllegalArgumentException | JsonProcessingException e) {
+      LOG.warn("Ignoring unknown change notification: {}", payload);
+      return;
+    }
+    LOG.info("Another node announced a change in {}", source);
+    if (source == LOCALISATION_FILES) {
+      s3.refreshFindCache(false);
+    } else {
+      eventPublisher.publishEvent(new LocalisationsChangedEvent(OVERRIDES, true, overrides));
+    }
+  }
+
+  private void listen() {
+    boolean reconnected = false;
+    while (!Thread.currentThread().isInterrupted()) {
+      try (final Connection connection =
+          DriverManager.getConnection(
+              dataSourceProperties.determineUrl(),
+              dataSourceProperties.determineUsername(),
+              dataSourceProperties.determinePassword())) {
+        try (final Statement statement = connection.createStatement()) {
+          statement.execute("LISTEN " + CHANNEL);
+        }
+        LOG.info("Listening to change notifications from other nodes");
+        if (reconnected) {
+          // notifications may have been missed while disconnected
+          s3.refreshFindCache(false);
+          eventPublisher.publishEvent(new LocalisationsChangedEvent(OVERRIDES, true));
+        }
+        final PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        while (!Thread.currentThread().isInterrupted()) {
+          final PGNotification[] notifications = pgConnection.getNotifications(1000);
+          if (notifications != null) {
+            for (final PGNotification notification : notifications) {
+              try {
+                received(notification.getParameter());
+              } catch (final RuntimeException e) {
+                LOG.error(
+                    "Failed to handle change notification {}", notification.getParameter(), e);
+              }
+            }
+          }
+        }
+      } catch (final SQLException e) {
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+        LOG.warn("Change notification connection failed, reconnecting", e);
+      }
+      reconnected = true;
+      try {
+        Thread.sleep(reconnectDelayMs);
+      } catch (final InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public synchronized void start() {
+    if (enabled && listener == null) {
+      listener = Thread.ofPlatform().name("invalidation-bus").daemon().start(this::listen);
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (listener != null) {
+      listener.interrupt();
+      listener = null;
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    return listener != null;
+  }
+}
@@ -0,0 +1,6 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import java.time.Instant;
+
+/** Contents of a localisation file in Tolgee format with its ETag and last modified time. */
+public record LocalisationFile(Payload payload, String eTag, Instant lastModified) {}
@@ -0,0 +1,47 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import fi.vm.sade.lokalisointi.model.Localisation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses a flat localisation file ({"key": "value", ...}) token by token, creating localisations
+ * directly without building an intermediate map.
+ */
+final class LocalisationFileParser {
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private LocalisationFileParser() {}
+
+  static List<Localisation> parse(final String namespace, final String locale, final byte[] content)
+      throws IOException {
+    final List<Localisation> localisations = new ArrayList<>();
+    try (final JsonParser parser = JSON_FACTORY.createParser(content)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException(parser, "Localisation file must contain a JSON object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String key = parser.currentName();
+        final JsonToken value = parser.nextToken();
+        if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+          throw new JsonParseException(
+              parser, "Value of localisation %s must be a string".formatted(key));
+        }
+        localisations.add(
+            new Localisation(
+                null,
+                namespace,
+                key,
+                locale,
+                value == JsonToken.VALUE_NULL ? null : parser.getValueAsString()));
+      }
+    }
+    return localisations;
+  }
+}
@@ -0,0 +1,55 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Repository;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current {@link LocalisationSnapshot}. The snapshot is rebuilt when localisation files
+ * or overrides change and swapped in atomically, so queries never wait for S3 or the database.
+ */
+@Repository
+public class LocalisationIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(LocalisationIndex.class);
+  private final S3 s3;
+  private final Database database;
+  private final AtomicReference<LocalisationSnapshot> snapshot = new AtomicReference<>();
+
+  @Value("${lokalisointi.snapshot.serialized-max-bytes:67108864}")
+  private Long serializedMaxBytes;
+
+  @Autowired
+  public LocalisationIndex(final S3 s3, final Database database) {
+    this.s3 = s3;
+    this.database = database;
+  }
+
+  public LocalisationSnapshot current() {
+    final LocalisationSnapshot current = snapshot.get();
+    if (current != null) {
+      return current;
+    }
+    synchronized (this) {
+      return snapshot.get() != null ? snapshot.get() : rebuild();
+    }
+  }
+
+  @EventListener
+  public void localisationsChanged(final LocalisationsChangedEvent event) {
+    LOG.info("Localisations changed ({}), rebuilding index", event.source());
+    rebuild();
+  }
+
+  public synchronized LocalisationSnapshot rebuild() {
+    final LocalisationSnapshot rebuilt =
+        LocalisationSnapshot.build(
+            s3.findAll(), database.find(), database.removals(), serializedMaxBytes);
+    snapshot.set(rebuilt);
+    return rebuilt;
+  }
+}
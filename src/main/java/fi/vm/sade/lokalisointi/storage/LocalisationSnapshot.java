@@ -0,0 +1,281 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import fi.vm.sade.lokalisointi.model.Localisation;
+import fi.vm.sade.lokalisointi.model.LocalisationOverride;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable index of published localisations with overrides merged in: namespace -> locale -> key
+ * -> localisation. Localisations without a namespace are indexed under a null namespace. The
+ * published files and overrides the index was built from are kept with it.
+ */
+public class LocalisationSnapshot {
+  private static final int MAX_REQUESTED_KEYS = 10_000;
+  private final Map<String, Map<String, Map<String, Localisation>>> localisations;
+  private final Map<FileKey, LocalisationFile> publishedFiles;
+  private final Map<FileKey, List<LocalisationOverride>> overrides;
+  private final Map<FileKey, Instant> overridesRemoved;
+  private final String version;
+  private final Cache<Object, Boolean> requested =
+      Caffeine.newBuilder().maximumSize(MAX_REQUESTED_KEYS).build();
+  private final Cache<Object, Payload> serialized;
+  private final Map<Object, Object> artifacts = new ConcurrentHashMap<>();
+
+  private record FileKey(String namespace, String locale) {}
+
+  private LocalisationSnapshot(
+      final Map<String, Map<String, Map<String, Localisation>>> localisations,
+      final Map<FileKey, LocalisationFile> publishedFiles,
+      final Map<FileKey, List<LocalisationOverride>> overrides,
+      final Map<FileKey, Instant> overridesRemoved,
+      final long maxSerializedBytes) {
+    this.localisations = localisations;
+    this.publishedFiles = publishedFiles;
+    this.overrides = overrides;
+    this.overridesRemoved = overridesRemoved;
+    this.version = version(localisations);
+    this.serialized =
+        Caffeine.newBuilder()
+            .maximumWeight(maxSerializedBytes)
+            .<Object, Payload>weigher((key, payload) -> payload.content().length)
+            .build();
+  }
+
+  /**
+   * @param maxSerializedBytes total size of uncompressed serialized representations kept with the
+   *     snapshot
+   */
+  public static LocalisationSnapshot build(
+      final Collection<PublishedFile> published,
+      final Collection<LocalisationOverride> overrides,
+      final Collection<OverrideRemoval> removals,
+      final long maxSerializedBytes) {
+    final Map<String, Map<String, Map<String, Localisation>>> index = new LinkedHashMap<>();
+    final Map<FileKey, LocalisationFile> publishedFiles = new HashMap<>();
+    published.forEach(
+        file -> {
+          publishedFiles.putIfAbsent(new FileKey(file.namespace(), file.locale()), file.file());
+          file.localisations().forEach(localisation -> index(index, localisation, true));
+        });
+    // first override wins if there are duplicates
+    final Map<String, Map<String, Map<String, Localisation>>> overrideIndex = new LinkedHashMap<>();
+    overrides.forEach(override -> index(overrideIndex, override.toLocalisation(), false));
+    overrideIndex.values().stream()
+        .flatMap(byLocale -> byLocale.values().stream())
+        .flatMap(byKey -> byKey.values().stream())
+        .forEach(localisation -> index(index, localisation, true));
+    final Map<FileKey, List<LocalisationOverride>> overridesByFile =
+        overrides.stream()
+            .collect(
+                Collectors.groupingBy(
+                    o -> new FileKey(o.getNamespace(), o.getLocale()), Collectors.toList()));
+    return new LocalisationSnapshot(
+        freeze(index),
+        Collections.unmodifiableMap(publishedFiles),
+        Collections.unmodifiableMap(overridesByFile),
+        removals.stream()
+            .collect(
+                Collectors.toUnmodifiableMap(
+                    r -> new FileKey(r.namespace(), r.locale()),
+                    OverrideRemoval::removed,
+                    (a, b) -> a.isAfter(b) ? a : b)),
+        maxSerializedBytes);
+  }
+
+  private static void index(
+      final Map<String, Map<String, Map<String, Localisation>>> index,
+      final Localisation localisation,
+      final boolean replace) {
+    final Map<String, Localisation> byKey =
+        index
+            .computeIfAbsent(localisation.getNamespace(), n -> new LinkedHashMap<>())
+            .computeIfAbsent(localisation.getLocale(), l -> new LinkedHashMap<>());
+    if (replace) {
+      byKey.put(localisation.getKey(), localisation);
+    } else {
+      byKey.putIfAbsent(localisation.getKey(), localisation);
+    }
+  }
+
+  private static Map<String, Map<String, Map<String, Localisation>>> freeze(
+      final Map<String, Map<String, Map<String, Localisation>>> index) {
+    final Map<String, Map<String, Map<String, Localisation>>> frozen = new LinkedHashMap<>();
+    index.forEach(
+        (namespace, byLocale) -> {
+          final Map<String, Map<String, Localisation>> frozenByLocale = new LinkedHashMap<>();
+          byLocale.forEach(
+              (locale, byKey) -> frozenByLocale.put(locale, Collections.unmodifiableMap(byKey)));
+          frozen.put(namespace, Collections.unmodifiableMap(frozenByLocale));
+        });
+    return Collections.unmodifiableMap(frozen);
+  }
+
+  /**
+   * Hash of the contents of the snapshot. Nodes that have loaded the same localisation files and
+   * overrides have the same version.
+   */
+  private static String version(
+      final Map<String, Map<String, Map<String, Localisation>>> localisations) {
+    final MessageDigest digest = sha256();
+    localisations.forEach(
+        (namespace, byLocale) ->
+            byLocale.forEach(
+                (locale, byKey) ->
+                    byKey
+                        .values()
+                        .forEach(
+                            l ->
+                                digest.update(
+                                    "%s\0%s\0%s\0%s\0%s\n"
+                                        .formatted(
+                                            l.getId(), namespace, locale, l.getKey(), l.getValue())
+                                        .getBytes(StandardCharsets.UTF_8)))));
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Strong entity tag for a response built from this snapshot with given query, computed without
+   * building the response.
+   */
+  public String eTag(final Object query) {
+    final byte[] hash =
+        sha256().digest("%s:%s".formatted(version, query).getBytes(StandardCharsets.UTF_8));
+    return "\"%s\"".formatted(HexFormat.of().formatHex(hash, 0, 16));
+  }
+
+  /**
+   * Walks localisations matching given parameters without collecting them, null parameters match
+   * everything.
+   */
+  public void forEach(
+      final String namespace,
+      final String locale,
+      final String key,
+      final Consumer<Localisation> action) {
+    if (namespace != null) {
+      forEach(localisations.get(namespace), locale, key, action);
+    } else {
+      localisations.values().forEach(byLocale -> forEach(byLocale, locale, key, action));
+    }
+  }
+
+  /**
+   * Published file the localisations of given namespace and locale were parsed from, without
+   * overrides. A null namespace matches only the file without namespace.
+   *
+   * @return the file or null if there is no such file
+   */
+  public LocalisationFile publishedFile(final String namespace, final String locale) {
+    return publishedFiles.get(new FileKey(namespace, locale));
+  }
+
+  /** Overrides of one file, a null namespace matches only overrides without namespace. */
+  public List<LocalisationOverride> overrides(final String namespace, final String locale) {
+    return overrides.getOrDefault(new FileKey(namespace, locale), List.of());
+  }
+
+  /**
+   * Latest time an override was removed from given file, a null namespace matches only the file
+   * without namespace.
+   *
+   * @return the time or null if no override has been removed from the file
+   */
+  public Instant overridesRemoved(final String namespace, final String locale) {
+    return overridesRemoved.get(new FileKey(namespace, locale));
+  }
+
+  /** Localisations of one file, a null namespace matches only localisations without namespace. */
+  public Collection<Localisation> file(final String namespace, final String locale) {
+    final Map<String, Map<String, Localisation>> byLocale = localisations.get(namespace);
+    final Map<String, Localisation> byKey = byLocale != null ? byLocale.get(locale) : null;
+    return byKey != null ? byKey.values() : List.of();
+  }
+
+  private void forEach(
+      final Map<String, Map<String, Localisation>> byLocale,
+      final String locale,
+      final String key,
+      final Consumer<Localisation> action) {
+    if (byLocale == null) {
+      return;
+    }
+    if (locale != null) {
+      forEach(byLocale.get(locale), key, action);
+    } else {
+      byLocale.values().forEach(byKey -> forEach(byKey, key, action));
+    }
+  }
+
+  private void forEach(
+      final Map<String, Localisation> byKey,
+      final String key,
+      final Consumer<Localisation> action) {
+    if (byKey == null) {
+      return;
+    }
+    if (key != null) {
+      final Localisation localisation = byKey.get(key);
+      if (localisation != null) {
+        action.accept(localisation);
+      }
+    } else {
+      byKey.values().forEach(action);
+    }
+  }
+
+  /**
+   * Serialized representation of (a part of) this snapshot, kept together with its compressed
+   * variant while the snapshot is current. A representation is computed when its key is requested
+   * the second time, so that keys requested only once do not take space from frequently requested
+   * ones. Representations are evicted by frequency of use when their total size exceeds the
+   * maximum given when the snapshot was built.
+   *
+   * @return the representation or null if it is not kept, the caller should then write it directly
+   *     to the response
+   */
+  public Payload serialized(final Object key, final Supplier<byte[]> serializer) {
+    final Payload existing = serialized.getIfPresent(key);
+    if (existing != null) {
+      return existing;
+    }
+    if (requested.asMap().putIfAbsent(key, Boolean.TRUE) == null) {
+      return null;
+    }
+    return serialized.get(key, k -> Payload.of(serializer.get()));
+  }
+
+  /** Number of serialized representations kept with this snapshot. */
+  public long serializedCount() {
+    serialized.cleanUp();
+    return serialized.estimatedSize();
+  }
+
+  /**
+   * Artifact derived from this snapshot, computed once per key and kept as long as the snapshot is
+   * current. Meant for artifacts whose number is bounded by the contents of the snapshot, such as
+   * one per localisation file. Null results are not kept.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T artifact(final Object key, final Supplier<T> builder) {
+    return (T) artifacts.computeIfAbsent(key, k -> builder.get());
+  }
+}
@@ -0,0 +1,26 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Published when localisation files in S3 or localisation overrides have changed. Remote events
+ * were not caused by this node: they were received from another node through {@link
+ * InvalidationBus} or noticed by a scheduled refresh, and are not broadcast again.
+ * Overrides contains keys of changed overrides, it is empty if they are not known.
+ */
+public record LocalisationsChangedEvent(
+    Source source, boolean remote, Collection<OverrideKey> overrides) {
+  public enum Source {
+    LOCALISATION_FILES,
+    OVERRIDES
+  }
+
+  public LocalisationsChangedEvent(final Source source) {
+    this(source, false);
+  }
+
+  public LocalisationsChangedEvent(final Source source, final boolean remote) {
+    this(source, remote, List.of());
+  }
+}
@@ -0,0 +1,10 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import fi.vm.sade.lokalisointi.model.LocalisationOverride;
+
+/** Unique key of a localisation override, see localisation_unique_key_check. */
+public record OverrideKey(String namespace, String locale, String key) {
+  public static OverrideKey of(final LocalisationOverride override) {
+    return new OverrideKey(override.getNamespace(), override.getLocale(), override.getKey());
+  }
+}
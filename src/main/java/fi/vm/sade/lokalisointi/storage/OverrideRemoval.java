@@ -0,0 +1,6 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import java.time.Instant;
+
+/** Latest time an override was deleted from or moved out of a localisation file. */
+public record OverrideRemoval(String namespace, String locale, Instant removed) {}
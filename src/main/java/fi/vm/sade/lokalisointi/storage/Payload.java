@@ -0,0 +1,47 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Response body with a gzip compressed variant. The variant is compressed when it is first needed
+ * and kept with the payload, so payloads kept in a snapshot are compressed at most once per
+ * snapshot.
+ */
+public final class Payload {
+  private final byte[] content;
+  private volatile byte[] gzipped;
+
+  private Payload(final byte[] content) {
+    this.content = content;
+  }
+
+  public static Payload of(final byte[] content) {
+    return new Payload(content);
+  }
+
+  public byte[] content() {
+    return content;
+  }
+
+  public byte[] gzipped() {
+    byte[] result = gzipped;
+    if (result == null) {
+      result = gzip(content);
+      gzipped = result;
+    }
+    return result;
+  }
+
+  private static byte[] gzip(final byte[] content) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 32);
+    try (final GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(content);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,12 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import fi.vm.sade.lokalisointi.model.Localisation;
+
+import java.util.List;
+
+/**
+ * Localisation file published in S3 with its parsed localisations. Namespace is null for files
+ * without a namespace.
+ */
+public record PublishedFile(
+    String namespace, String locale, LocalisationFile file, List<Localisation> localisations) {}
@@ -0,0 +1,95 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import fi.vm.sade.lokalisointi.model.OphEnvironment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClient;
+
+import java.util.*;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+
+/**
+ * Clients for the other environments localisations are copied from. One client is built per
+ * environment and kept for the lifetime of the application, connections to the environments are
+ * pooled and kept alive by the shared HTTP client.
+ */
+@Component
+public class RemoteEnvironments implements InitializingBean {
+  private static final Logger LOG = LoggerFactory.getLogger(RemoteEnvironments.class);
+  private final ClientHttpRequestFactory requestFactory;
+  private final Map<OphEnvironment, RestClient> clients = new EnumMap<>(OphEnvironment.class);
+
+  @Value("${lokalisointi.baseurls.pallero}")
+  private String baseUrlPallero;
+
+  @Value("${lokalisointi.baseurls.untuva}")
+  private String baseUrlUntuva;
+
+  @Value("${lokalisointi.baseurls.hahtuva}")
+  private String baseUrlHahtuva;
+
+  @Value("${lokalisointi.baseurls.sade}")
+  private String baseUrlSade;
+
+  @Autowired
+  public RemoteEnvironments(final ClientHttpRequestFactory requestFactory) {
+    this.requestFactory = requestFactory;
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    for (final OphEnvironment env : OphEnvironment.values()) {
+      clients.put(
+          env,
+          RestClient.builder().requestFactory(requestFactory).baseUrl(baseUrl(env)).build());
+    }
+  }
+
+  public String baseUrl(final OphEnvironment env) {
+    return switch (env) {
+      case pallero -> baseUrlPallero;
+      case untuva -> baseUrlUntuva;
+      case hahtuva -> baseUrlHahtuva;
+      case sade -> baseUrlSade;
+    };
+  }
+
+  public RestClient client(final OphEnvironment env) {
+    return clients.get(env);
+  }
+
+  /**
+   * Namespaces available for copying in given environment. Results are cached and concurrent
+   * requests for the same environment wait for a single remote call. The cache reloads the
+   * namespaces in the background with {@link #fetchAvailableNamespaces} after
+   * refresh-after-write, serving the previous result meanwhile.
+   */
+  @Cacheable(value = "available-namespaces", sync = true)
+  public Set<String> availableNamespaces(final OphEnvironment env) {
+    return fetchAvailableNamespaces(env);
+  }
+
+  /** Namespaces available for copying in given environment, always fetched from it. */
+  public Set<String> fetchAvailableNamespaces(final OphEnvironment env) {
+    LOG.info("Fetching available namespaces from {}", env);
+    final String[] availableNamespaces =
+        client(env)
+            .get()
+            .uri(
+                String.format("%s/lokalisointi/api/v1/copy/available-namespaces", baseUrl(env)))
+            .accept(APPLICATION_JSON)
+            .retrieve()
+            .body(String[].class);
+    if (availableNamespaces != null) {
+      return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(availableNamespaces)));
+    }
+    return Collections.emptySet();
+  }
+}
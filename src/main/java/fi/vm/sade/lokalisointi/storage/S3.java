@@ -1,40 +1,50 @@
 package fi.vm.sade.lokalisointi.storage;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.json.JsonMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import fi.vm.sade.lokalisointi.model.CopyJob;
 import fi.vm.sade.lokalisointi.model.CopyLocalisations;
 import fi.vm.sade.lokalisointi.model.Localisation;
 import fi.vm.sade.lokalisointi.model.OphEnvironment;
-import fi.vm.sade.valinta.dokumenttipalvelu.dto.ObjectEntity;
 import fi.vm.sade.valinta.dokumenttipalvelu.dto.ObjectMetadata;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestClient;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.util.DefaultUriBuilderFactory;
 import org.springframework.web.util.UriBuilder;
-import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.services.s3.model.S3Error;
 
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import static fi.vm.sade.lokalisointi.storage.LocalisationsChangedEvent.Source.LOCALISATION_FILES;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
 import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM;
 
@@ -42,19 +52,12 @@ import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM;
 public class S3 implements InitializingBean {
   private static final Logger LOG = LoggerFactory.getLogger(S3.class);
   public static final String LOKALISOINTI_TAG = "lokalisointi";
+  // limit of S3 DeleteObjects
+  private static final int MAX_DELETE_BATCH_SIZE = 1000;
   private final ExtendedDokumenttipalvelu dokumenttipalvelu;
-
-  @Value("${lokalisointi.baseurls.pallero}")
-  private String baseUrlPallero;
-
-  @Value("${lokalisointi.baseurls.untuva}")
-  private String baseUrlUntuva;
-
-  @Value("${lokalisointi.baseurls.hahtuva}")
-  private String baseUrlHahtuva;
-
-  @Value("${lokalisointi.baseurls.sade}")
-  private String baseUrlSade;
+  private final CopyJobs copyJobs;
+  private final RemoteEnvironments remoteEnvironments;
+  private final ApplicationEventPublisher eventPublisher;
 
   @Value("${lokalisointi.envname}")
   private String envName;
@@ -62,51 +65,216 @@ public class S3 implements InitializingBean {
   @Value("${tolgee.slug}")
   private String tolgeeSlug;
 
-  private final RestClient.Builder restClientBuilder;
-  private final ObjectMapper mapper;
+  @Value("${lokalisointi.s3.fetch-concurrency:16}")
+  private Integer fetchConcurrency;
 
-  private String virkailijaBaseUrl(final OphEnvironment env) {
-    return switch (env) {
-      case pallero -> baseUrlPallero;
-      case untuva -> baseUrlUntuva;
-      case hahtuva -> baseUrlHahtuva;
-      case sade -> baseUrlSade;
-    };
+  @Value("${lokalisointi.s3.upload-concurrency:8}")
+  private Integer uploadConcurrency;
+
+  @Value("${lokalisointi.s3.delete-concurrency:4}")
+  private Integer deleteConcurrency;
+
+  @Value("${lokalisointi.copy.batch-size:50}")
+  private Integer copyBatchSize;
+
+  @Value("${lokalisointi.copy.max-attempts:3}")
+  private Integer copyMaxAttempts;
+
+  @Value("${lokalisointi.copy.retry-delay-ms:1000}")
+  private Long copyRetryDelayMs;
+
+  /** Parsed localisation files by object key, valid as long as ETag and last modified match. */
+  private final Cache parsedFiles;
+
+  /** Versions of objects that could not be loaded, not fetched again until they change. */
+  private final Map<String, ObjectMetadata> unloadable = new ConcurrentHashMap<>();
+
+  /** Listing that the parsed files and the last published change are based on. */
+  private volatile Map<String, ObjectMetadata> publishedObjects;
+
+  private record ParsedLocalisationFile(
+      String namespace,
+      String locale,
+      String eTag,
+      Instant lastModified,
+      byte[] content,
+      List<Localisation> localisations) {
+    boolean isCurrent(final ObjectMetadata metadata) {
+      return Objects.equals(eTag, metadata.eTag)
+          && Objects.equals(lastModified, metadata.lastModified);
+    }
   }
 
   @Override
   public void afterPropertiesSet() throws Exception {
     LOG.info("tolgeeSlug: {}", tolgeeSlug);
+    LOG.info("fetchConcurrency: {}", fetchConcurrency);
+    LOG.info("uploadConcurrency: {}", uploadConcurrency);
+    LOG.info("deleteConcurrency: {}", deleteConcurrency);
   }
 
+  /**
+   * Refreshes the localisation file listing incrementally: only added or changed files are fetched,
+   * deleted files are dropped and the cached listing is replaced only after the changed files have
+   * been loaded, so the listing cache is never empty.
+   */
   @Scheduled(fixedRateString = "${lokalisointi.find-cache-ttl-ms}")
   public void refreshFindCache() {
+    refreshFindCache(false);
+  }
+
+  /**
+   * @param announce true when this node changed the files itself, other nodes are then told to
+   *     refresh even if a scheduled refresh of this node has already picked the changes up.
+   *     Scheduled refreshes and refreshes for changes announced by other nodes are not announced,
+   *     every node notices those changes on its own.
+   */
+  public synchronized void refreshFindCache(final boolean announce) {
     LOG.info("Refreshing find cache");
-    dokumenttipalvelu.emptyFindCache();
-    dokumenttipalvelu.cachedFind(List.of(LOKALISOINTI_TAG));
+    final Collection<String> terms = List.of(LOKALISOINTI_TAG);
+    final Map<String, ObjectMetadata> previous =
+        publishedObjects != null ? publishedObjects : byKey(dokumenttipalvelu.cachedFind(terms));
+    final Collection<ObjectMetadata> objects = dokumenttipalvelu.find(terms);
+    final Map<String, ObjectMetadata> current = byKey(objects);
+    final long added = current.keySet().stream().filter(k -> !previous.containsKey(k)).count();
+    final long changed =
+        current.values().stream()
+            .filter(o -> previous.containsKey(o.key) && !sameVersion(previous.get(o.key), o))
+            .count();
+    final long deleted = previous.keySet().stream().filter(k -> !current.containsKey(k)).count();
+    if (added + changed + deleted == 0) {
+      LOG.info("No changes in localisation files");
+      publishedObjects = current;
+      if (announce) {
+        eventPublisher.publishEvent(new LocalisationsChangedEvent(LOCALISATION_FILES));
+      }
+      return;
+    }
+    LOG.info(
+        "Localisation files changed: {} added, {} changed, {} deleted", added, changed, deleted);
+    loadParsedFiles(objects).join();
+    dokumenttipalvelu.updateFindCache(terms, objects);
+    previous.keySet().stream()
+        .filter(k -> !current.containsKey(k))
+        .forEach(
+            k -> {
+              parsedFiles.evict(k);
+              unloadable.remove(k);
+            });
+    publishedObjects = current;
+    eventPublisher.publishEvent(new LocalisationsChangedEvent(LOCALISATION_FILES, !announce));
+  }
+
+  private ParsedLocalisationFile parsedFile(final String key) {
+    return parsedFiles.get(key, ParsedLocalisationFile.class);
+  }
+
+  private static Map<String, ObjectMetadata> byKey(final Collection<ObjectMetadata> objects) {
+    return objects.stream().collect(Collectors.toMap(o -> o.key, o -> o, (a, b) -> a));
+  }
+
+  private static boolean sameVersion(final ObjectMetadata a, final ObjectMetadata b) {
+    return Objects.equals(a.eTag, b.eTag) && Objects.equals(a.lastModified, b.lastModified);
+  }
+
+  /**
+   * Returns parsed files for given objects. Files that are not parsed yet or have changed since
+   * they were parsed are fetched from S3, at most fetchConcurrency files at the same time. A file
+   * that cannot be fetched or parsed does not fail the others: its previously parsed version is
+   * returned if there is one, otherwise it is left out. The same version is not fetched again.
+   */
+  private CompletableFuture<Map<String, ParsedLocalisationFile>> loadParsedFiles(
+      final Collection<ObjectMetadata> objects) {
+    final Map<String, ParsedLocalisationFile> result = new ConcurrentHashMap<>();
+    final List<ObjectMetadata> changed = new ArrayList<>();
+    for (final ObjectMetadata metadata : objects) {
+      if (metadata.key.endsWith("/")) {
+        continue;
+      }
+      final ParsedLocalisationFile parsed = parsedFile(metadata.key);
+      if (parsed != null && parsed.isCurrent(metadata)) {
+        result.put(metadata.key, parsed);
+      } else if (unloadable.containsKey(metadata.key)
+          && sameVersion(unloadable.get(metadata.key), metadata)) {
+        if (parsed != null) {
+          result.put(metadata.key, parsed);
+        }
+      } else {
+        changed.add(metadata);
+      }
+    }
+    if (changed.isEmpty()) {
+      return CompletableFuture.completedFuture(result);
+    }
+    LOG.info("Loading {} new or changed localisation files", changed.size());
+    return BoundedConcurrency.map(
+            changed,
+            fetchConcurrency,
+            metadata ->
+                dokumenttipalvelu
+                    .getObjectBytes(metadata.key)
+                    .thenApply(bytes -> parse(metadata, bytes.asByteArrayUnsafe()))
+                    .handle(
+                        (parsed, error) -> {
+                          if (error != null) {
+                            unloadable(metadata, error, result);
+                          } else {
+                            parsedFiles.put(metadata.key, parsed);
+                            unloadable.remove(metadata.key);
+                            result.put(metadata.key, parsed);
+                          }
+                          return null;
+                        }))
+        .thenApply(loaded -> result);
+  }
+
+  private void unloadable(
+      final ObjectMetadata metadata,
+      final Throwable error,
+      final Map<String, ParsedLocalisationFile> result) {
+    final ParsedLocalisationFile previous = parsedFile(metadata.key);
+    LOG.warn(
+        "Could not load localisation file {}, {}",
+        metadata.key,
+        previous != null ? "keeping the previously loaded version" : "leaving it out",
+        error);
+    unloadable.put(metadata.key, metadata);
+    if (previous != null) {
+      result.put(metadata.key, previous);
+    }
   }
 
   @Autowired
-  public S3(final ExtendedDokumenttipalvelu dokumenttipalvelu) {
+  public S3(
+      final ExtendedDokumenttipalvelu dokumenttipalvelu,
+      final ApplicationEventPublisher eventPublisher,
+      final CacheManager cacheManager,
+      final CopyJobs copyJobs,
+      final RemoteEnvironments remoteEnvironments) {
     this.dokumenttipalvelu = dokumenttipalvelu;
-    this.restClientBuilder =
-        RestClient.builder().requestFactory(new HttpComponentsClientHttpRequestFactory());
-    this.mapper = JsonMapper.builder().addModule(new JavaTimeModule()).build();
+    this.copyJobs = copyJobs;
+    this.remoteEnvironments = remoteEnvironments;
+    this.eventPublisher = eventPublisher;
+    this.parsedFiles = cacheManager.getCache("localisation-files");
   }
 
-  public Collection<Localisation> find(
-      final String namespace, final String locale, final String key) {
-    LOG.debug(
-        "Finding localisations with: namespace {}, locale {}, key {}", namespace, locale, key);
-    return dokumenttipalvelu.cachedFind(List.of(LOKALISOINTI_TAG)).parallelStream()
-        .filter(
-            o ->
-                namespace == null
-                    || o.key.startsWith(
-                        String.format("t-%s/%s/%s/", LOKALISOINTI_TAG, tolgeeSlug, namespace)))
-        .filter(o -> locale == null || o.key.endsWith(String.format("/%s.json", locale)))
-        .flatMap(this::transformToLocalisationStream)
-        .filter(l -> key == null || l.getKey().equals(key))
+  /** Localisation files in the cached listing with the S3 object version they were parsed from. */
+  public Collection<PublishedFile> findAll() {
+    LOG.debug("Finding all localisations");
+    final Collection<ObjectMetadata> objects =
+        dokumenttipalvelu.cachedFind(List.of(LOKALISOINTI_TAG));
+    final Map<String, ParsedLocalisationFile> parsed = loadParsedFiles(objects).join();
+    return objects.stream()
+        .map(o -> parsed.get(o.key))
+        .filter(Objects::nonNull)
+        .map(
+            file ->
+                new PublishedFile(
+                    file.namespace(),
+                    file.locale(),
+                    new LocalisationFile(
+                        Payload.of(file.content()), file.eTag(), file.lastModified()),
+                    file.localisations()))
         .toList();
   }
 
@@ -114,35 +282,20 @@ public class S3 implements InitializingBean {
     if (source == null) {
       // if source is not given, return namespaces from this environment
       return dokumenttipalvelu.cachedFind(List.of(LOKALISOINTI_TAG)).stream()
-          .map(
-              metadata -> {
-                final List<String> splittedObjectKey =
-                    Arrays.stream(metadata.key.split("/"))
-                        .filter(s -> !s.equals(String.format("t-%s", LOKALISOINTI_TAG)))
-                        .filter(s -> !s.equals(tolgeeSlug))
-                        .toList();
-                return splittedObjectKey.size() > 1 ? splittedObjectKey.getFirst() : null;
-              })
+          .map(metadata -> parseKey(metadata.key).namespace())
           .collect(Collectors.toSet());
     }
     // otherwise call source environment's endpoint
-    final String virkailijaBaseUrl = virkailijaBaseUrl(source);
-    final RestClient restClient = restClientBuilder.baseUrl(virkailijaBaseUrl).build();
-    final String[] availableNamespaces =
-        restClient
-            .get()
-            .uri(
-                String.format(
-                    "%s/lokalisointi/api/v1/copy/available-namespaces", virkailijaBaseUrl))
-            .accept(APPLICATION_JSON)
-            .retrieve()
-            .body(String[].class);
-    if (availableNamespaces != null) {
-      return Arrays.stream(availableNamespaces).collect(Collectors.toSet());
-    }
-    return Collections.emptySet();
+    return remoteEnvironments.availableNamespaces(source);
   }
 
+  /**
+   * Copies localisation files from the source environment. Manifests of both environments are
+   * compared first and only new or changed files are transferred, in batches that are recorded as a
+   * {@link CopyJob}. A copy that fails part way is continued from the files not copied yet. Files
+   * missing from the source are deleted when all namespaces are copied, only after all files have
+   * been transferred. If the source does not provide a manifest, all files are transferred at once.
+   */
   public void copyLocalisations(final CopyLocalisations copyRequest, final String username)
       throws IOException {
     LOG.info(
@@ -154,169 +307,434 @@ public class S3 implements InitializingBean {
       LOG.info("Trying to copy localisations from current environment - aborting");
       return;
     }
-    final String virkailijaBaseUrl = virkailijaBaseUrl(copyRequest.getSource());
-    final RestClient restClient = restClientBuilder.baseUrl(virkailijaBaseUrl).build();
+    final String virkailijaBaseUrl = remoteEnvironments.baseUrl(copyRequest.getSource());
+    final RestClient restClient = remoteEnvironments.client(copyRequest.getSource());
+    final Collection<String> namespaces = copyRequest.getNamespaces();
+    final Map<String, String> sourceManifest =
+        sourceManifest(restClient, virkailijaBaseUrl, namespaces);
+    final Collection<ObjectMetadata> objects =
+        dokumenttipalvelu.cachedFind(List.of(LOKALISOINTI_TAG));
+    if (sourceManifest == null) {
+      LOG.info("{} does not provide a manifest, copying all files", copyRequest.getSource());
+      final List<String> received =
+          copyLocalisationFiles(restClient, virkailijaBaseUrl, namespaces, null, file -> true);
+      if (received.isEmpty()) {
+        LOG.warn("No localisation files received from {}", copyRequest.getSource());
+        return;
+      }
+      deleteObjects(staleKeys(objects, received, namespaces));
+      refreshFindCache(true);
+      return;
+    }
+    if (sourceManifest.isEmpty()) {
+      LOG.warn("No localisation files found in {}", copyRequest.getSource());
+      return;
+    }
+    final Map<String, String> localManifest = manifest(objects);
+    final List<String> changed =
+        sourceManifest.entrySet().stream()
+            .filter(e -> !e.getValue().equals(localManifest.get(e.getKey())))
+            .map(Map.Entry::getKey)
+            .sorted()
+            .toList();
+    final List<String> stale = staleKeys(objects, sourceManifest.keySet(), namespaces);
+    LOG.info(
+        "{} of {} localisation files have changed, {} to be deleted",
+        changed.size(),
+        sourceManifest.size(),
+        stale.size());
+    if (changed.isEmpty() && stale.isEmpty()) {
+      LOG.info("Localisations are up to date with {}", copyRequest.getSource());
+      copyJobs.completeFailed(copyRequest.getSource(), namespaces);
+      return;
+    }
+    CopyJob job = copyJobs.start(copyRequest.getSource(), namespaces, username, changed.size());
+    try {
+      for (int i = 0; i < changed.size(); i += copyBatchSize) {
+        final List<String> batch = changed.subList(i, Math.min(i + copyBatchSize, changed.size()));
+        copyBatch(restClient, virkailijaBaseUrl, namespaces, batch);
+        job = copyJobs.checkpoint(job, batch.size());
+      }
+      // deleting only after all files have been transferred
+      deleteObjects(stale);
+    } catch (final RuntimeException | IOException e) {
+      copyJobs.finish(job, CopyJob.State.FAILED);
+      throw e;
+    } finally {
+      try {
+        refreshFindCache(true);
+      } catch (final RuntimeException e) {
+        // the scheduled refresh will pick the copied files up
+        LOG.warn("Could not refresh localisation files after copying", e);
+      }
+    }
+    copyJobs.finish(job, CopyJob.State.COMPLETED);
+  }
+
+  /** Copies a batch of files, retrying if the source could not be reached. */
+  private void copyBatch(
+      final RestClient restClient,
+      final String virkailijaBaseUrl,
+      final Collection<String> namespaces,
+      final List<String> batch)
+      throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        copyLocalisationFiles(restClient, virkailijaBaseUrl, namespaces, batch, batch::contains);
+        return;
+      } catch (final ResourceAccessException | HttpServerErrorException e) {
+        if (attempt >= copyMaxAttempts) {
+          throw e;
+        }
+        LOG.warn("Copying {} failed on attempt {}, retrying", batch, attempt, e);
+        try {
+          Thread.sleep(attempt * copyRetryDelayMs);
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while copying localisation files");
+        }
+      }
+    }
+  }
+
+  /** @return keys of local files not in the source, if all namespaces are copied */
+  private List<String> staleKeys(
+      final Collection<ObjectMetadata> objects,
+      final Collection<String> sourceFiles,
+      final Collection<String> namespaces) {
+    if (namespaces != null && !namespaces.isEmpty()) {
+      return List.of();
+    }
+    final Set<String> sourceKeys =
+        sourceFiles.stream().map(this::objectKey).collect(Collectors.toSet());
+    return objects.stream().map(o -> o.key).filter(key -> !sourceKeys.contains(key)).toList();
+  }
+
+  /**
+   * Deletes objects in batches of at most 1000 keys, at most deleteConcurrency batches at the same
+   * time.
+   */
+  private void deleteObjects(final List<String> keys) {
+    if (keys.isEmpty()) {
+      return;
+    }
+    final List<List<String>> batches = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i += MAX_DELETE_BATCH_SIZE) {
+      batches.add(keys.subList(i, Math.min(i + MAX_DELETE_BATCH_SIZE, keys.size())));
+    }
+    LOG.info("Deleting {} localisation files in {} batches", keys.size(), batches.size());
+    final AtomicInteger deleted = new AtomicInteger();
+    final List<String> failed =
+        BoundedConcurrency.map(
+                batches,
+                deleteConcurrency,
+                batch ->
+                    dokumenttipalvelu
+                        .deleteObjects(batch)
+                        .thenApply(
+                            response -> {
+                              response
+                                  .errors()
+                                  .forEach(
+                                      e ->
+                                          LOG.warn(
+                                              "Could not delete localisation file {}: {}",
+                                              e.key(),
+                                              e.message()));
+                              LOG.info(
+                                  "Deleted {}/{} localisation files",
+                                  deleted.addAndGet(batch.size() - response.errors().size()),
+                                  keys.size());
+                              return response.errors().stream().map(S3Error::key).toList();
+                            }))
+            .join()
+            .stream()
+            .flatMap(List::stream)
+            .toList();
+    if (!failed.isEmpty()) {
+      throw new IllegalStateException(
+          "Could not delete %d localisation files".formatted(failed.size()));
+    }
+  }
+
+  /**
+   * @return content hash by file name from the source environment or null if the source does not
+   *     provide a manifest
+   */
+  private Map<String, String> sourceManifest(
+      final RestClient restClient,
+      final String virkailijaBaseUrl,
+      final Collection<String> namespaces) {
+    final UriBuilder urlBuilder =
+        new DefaultUriBuilderFactory(
+                String.format("%s/lokalisointi/api/v1/copy/manifest", virkailijaBaseUrl))
+            .builder();
+    if (namespaces != null && !namespaces.isEmpty()) {
+      urlBuilder.queryParam("namespaces", namespaces);
+    }
+    return restClient
+        .get()
+        .uri(urlBuilder.build())
+        .accept(APPLICATION_JSON)
+        .exchange(
+            (request, response) -> {
+              // older versions redirect unknown paths to login
+              if (!response.getStatusCode().is2xxSuccessful()
+                  || !APPLICATION_JSON.isCompatibleWith(response.getHeaders().getContentType())) {
+                return null;
+              }
+              return response.bodyTo(new ParameterizedTypeReference<Map<String, String>>() {});
+            });
+  }
+
+  /**
+   * Downloads localisation files from the source environment and uploads the included ones to S3.
+   *
+   * @param files files to request or null to request all files in given namespaces
+   * @return names of all files received
+   */
+  private List<String> copyLocalisationFiles(
+      final RestClient restClient,
+      final String virkailijaBaseUrl,
+      final Collection<String> namespaces,
+      final Collection<String> files,
+      final Predicate<String> include) {
     final UriBuilder urlBuilder =
         new DefaultUriBuilderFactory(
                 String.format("%s/lokalisointi/api/v1/copy/localisation-files", virkailijaBaseUrl))
             .builder();
-    if (copyRequest.getNamespaces() != null && !copyRequest.getNamespaces().isEmpty()) {
-      urlBuilder.queryParam("namespaces", copyRequest.getNamespaces());
+    if (namespaces != null && !namespaces.isEmpty()) {
+      urlBuilder.queryParam("namespaces", namespaces);
     }
-    final byte[] body =
-        restClient
-            .get()
-            .uri(urlBuilder.build())
-            .accept(APPLICATION_OCTET_STREAM)
-            .retrieve()
-            .body(byte[].class);
-    if (body != null) {
-      byte[] buffer = new byte[1024];
-      final List<ZipEntry> entries = new ArrayList<>();
-      try (final ZipInputStream zipArchive = new ZipInputStream(new ByteArrayInputStream(body))) {
-        ZipEntry entry;
-        while ((entry = zipArchive.getNextEntry()) != null) {
-          entries.add(entry);
-          final String[] pathAndName = entry.getName().split("/");
-          String namespace = null, localeFilename = null;
-          if (pathAndName.length == 2) {
-            namespace = pathAndName[0];
-            localeFilename = pathAndName[1];
-          } else if (pathAndName.length == 1) {
-            localeFilename = pathAndName[0];
-          } else {
-            throw new RuntimeException(
-                """
-                    Error parsing file name from localisation zip archive: %s"""
-                    .formatted(entry));
-          }
-          LOG.info("Writing localisation file {} to S3", entry.getName());
-          final File tempFile = File.createTempFile("localisation-file", "json");
-          final FileOutputStream fos = new FileOutputStream(tempFile);
-          int len;
-          while ((len = zipArchive.read(buffer)) > 0) {
-            fos.write(buffer, 0, len);
-          }
-          fos.close();
-          final String key =
-              namespace != null && !namespace.isEmpty()
-                  ? String.format(
-                      "t-%s/%s/%s/%s", LOKALISOINTI_TAG, tolgeeSlug, namespace, localeFilename)
-                  : String.format("t-%s/%s/%s", LOKALISOINTI_TAG, tolgeeSlug, localeFilename);
-          dokumenttipalvelu
-              .putObject(key, localeFilename, "application/json", new FileInputStream(tempFile))
-              .join();
-          tempFile.delete();
+    if (files != null) {
+      urlBuilder.queryParam("files", files);
+    }
+    return restClient
+        .get()
+        .uri(urlBuilder.build())
+        .accept(APPLICATION_OCTET_STREAM)
+        .exchange(
+            (request, response) -> {
+              if (response.getStatusCode().isError()) {
+                throw statusException(response);
+              }
+              return uploadLocalisationFiles(response.getBody(), include);
+            });
+  }
+
+  /**
+   * Reads localisation files from a zip stream and uploads them to S3, at most uploadConcurrency
+   * files at the same time. Only files being uploaded are held in memory, reading the stream waits
+   * while all uploads are in flight.
+   *
+   * @return names of the zip entries
+   */
+  private List<String> uploadLocalisationFiles(
+      final InputStream zipStream, final Predicate<String> include) throws IOException {
+    final List<String> entries = new ArrayList<>();
+    final List<CompletableFuture<?>> uploads = new ArrayList<>();
+    final Semaphore inFlight = new Semaphore(Math.max(uploadConcurrency, 1));
+    try (final ZipInputStream zipArchive = new ZipInputStream(zipStream)) {
+      ZipEntry entry;
+      while ((entry = zipArchive.getNextEntry()) != null) {
+        entries.add(entry.getName());
+        if (!include.test(entry.getName())) {
+          continue;
         }
-      }
-      if (copyRequest.getNamespaces() == null || copyRequest.getNamespaces().isEmpty()) {
-        final Set<String> newEntries =
-            entries.stream()
-                .map(e -> String.format("t-%s/%s/%s", LOKALISOINTI_TAG, tolgeeSlug, e.getName()))
-                .collect(Collectors.toSet());
-        final Set<String> keysToBeDeleted =
-            new HashSet<>(
-                dokumenttipalvelu.find(List.of(LOKALISOINTI_TAG)).stream()
-                    .map(m -> m.key)
-                    .toList());
-        keysToBeDeleted.removeAll(newEntries);
-        for (final String key : keysToBeDeleted) {
-          LOG.info("Deleting localisation file {}", key);
-          dokumenttipalvelu.delete(key);
+        final String[] pathAndName = entry.getName().split("/");
+        String namespace = null, localeFilename = null;
+        if (pathAndName.length == 2) {
+          namespace = pathAndName[0];
+          localeFilename = pathAndName[1];
+        } else if (pathAndName.length == 1) {
+          localeFilename = pathAndName[0];
+        } else {
+          throw new RuntimeException(
+              """
+                  Error parsing file name from localisation zip archive: %s"""
+                  .formatted(entry));
+        }
+        final byte[] content = zipArchive.readAllBytes();
+        final String key =
+            namespace != null && !namespace.isEmpty()
+                ? String.format(
+                    "t-%s/%s/%s/%s", LOKALISOINTI_TAG, tolgeeSlug, namespace, localeFilename)
+                : String.format("t-%s/%s/%s", LOKALISOINTI_TAG, tolgeeSlug, localeFilename);
+        try {
+          inFlight.acquire();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while copying localisation files");
+        }
+        LOG.info("Writing localisation file {} to S3", entry.getName());
+        try {
+          uploads.add(
+              dokumenttipalvelu
+                  .putObject(
+                      key, localeFilename, "application/json", new ByteArrayInputStream(content))
+                  .whenComplete((result, error) -> inFlight.release()));
+        } catch (final RuntimeException e) {
+          inFlight.release();
+          throw e;
         }
       }
     }
+    CompletableFuture.allOf(uploads.toArray(CompletableFuture[]::new)).join();
+    return entries;
   }
 
-  public StreamingResponseBody getLocalisationFilesZip(final Collection<String> namespaces) {
-    final List<ObjectMetadata> withMatchingNamespaces =
-        dokumenttipalvelu.find(List.of(LOKALISOINTI_TAG)).stream()
+  private static HttpStatusCodeException statusException(final ClientHttpResponse response)
+      throws IOException {
+    final byte[] body = response.getBody().readAllBytes();
+    return response.getStatusCode().is4xxClientError()
+        ? HttpClientErrorException.create(
+            response.getStatusCode(), response.getStatusText(), response.getHeaders(), body, null)
+        : HttpServerErrorException.create(
+            response.getStatusCode(), response.getStatusText(), response.getHeaders(), body, null);
+  }
+
+  /**
+   * Zip of localisation files in the cached listing, entries ordered by file name. Up to
+   * fetchConcurrency files are fetched ahead of the entry being written, so only as many files are
+   * held in memory. Files in the local cache are not fetched again.
+   *
+   * @param files names of files to include, all files in given namespaces are included if null or
+   *     empty
+   */
+  public StreamingResponseBody getLocalisationFilesZip(
+      final Collection<String> namespaces, final Collection<String> files) {
+    final List<ObjectMetadata> included =
+        withMatchingNamespaces(dokumenttipalvelu.cachedFind(List.of(LOKALISOINTI_TAG)), namespaces)
+            .stream()
             .filter(
-                metadata -> {
-                  if (namespaces == null || namespaces.isEmpty()) {
-                    return true;
-                  }
-                  final List<String> splittedObjectKey =
-                      Arrays.stream(metadata.key.split("/"))
-                          .filter(s -> !s.equals(String.format("t-%s", LOKALISOINTI_TAG)))
-                          .filter(s -> !s.equals(tolgeeSlug))
-                          .toList();
-                  return namespaces.contains(
-                      splittedObjectKey.size() > 1 ? splittedObjectKey.getFirst() : null);
-                })
+                metadata ->
+                    files == null
+                        || files.isEmpty()
+                        || files.contains(parseKey(metadata.key).copyFileName()))
+            .sorted(Comparator.comparing(metadata -> parseKey(metadata.key).copyFileName()))
             .toList();
     return outputStream -> {
       final ZipOutputStream out = new ZipOutputStream(outputStream);
-      for (final ObjectMetadata metadata : withMatchingNamespaces) {
-        if (!metadata.key.endsWith("/")) {
-          final ObjectEntity objectEntity = dokumenttipalvelu.get(metadata.key);
-          final List<String> splittedObjectKey =
-              Arrays.stream(metadata.key.split("/"))
-                  .filter(s -> !s.equals(String.format("t-%s", LOKALISOINTI_TAG)))
-                  .filter(s -> !s.equals(tolgeeSlug))
-                  .toList();
-          final String namespace =
-              splittedObjectKey.size() > 1 ? splittedObjectKey.getFirst() : null;
-          final String filename = splittedObjectKey.getLast();
-          final String entryName =
-              namespace != null && !namespace.isEmpty()
-                  ? String.format("%s/%s", namespace, filename)
-                  : filename;
-          out.putNextEntry(new ZipEntry(entryName));
-          IOUtils.copy(objectEntity.entity, out);
-          out.closeEntry();
+      final Deque<CompletableFuture<byte[]>> prefetched = new ArrayDeque<>();
+      int next = 0;
+      for (final ObjectMetadata metadata : included) {
+        while (next < included.size() && prefetched.size() < Math.max(fetchConcurrency, 1)) {
+          prefetched.addLast(content(included.get(next++)));
         }
+        final byte[] content;
+        try {
+          content = prefetched.removeFirst().join();
+        } catch (final CompletionException e) {
+          throw new IOException("Could not fetch localisation file %s".formatted(metadata.key), e);
+        }
+        out.putNextEntry(new ZipEntry(parseKey(metadata.key).copyFileName()));
+        out.write(content);
+        out.closeEntry();
       }
       out.finish();
       out.close();
     };
   }
 
-  protected Stream<Localisation> transformToLocalisationStream(final ObjectMetadata metadata) {
-    try {
-      final ObjectEntity objectEntity = dokumenttipalvelu.get(metadata.key);
-
-      final List<String> splittedObjectKey =
-          Arrays.stream(metadata.key.split("/"))
-              .filter(s -> !s.equals(String.format("t-%s", LOKALISOINTI_TAG)))
-              .filter(s -> !s.equals(tolgeeSlug))
-              .toList();
-
-      final TypeReference<Map<String, String>> typeRef = new TypeReference<>() {};
-      try (final InputStreamReader reader = new InputStreamReader(objectEntity.entity)) {
-        final Map<String, String> localisations = mapper.readValue(reader, typeRef);
-        return localisations.keySet().stream()
-            .map(
-                localisationKey ->
-                    new Localisation(
-                        null,
-                        splittedObjectKey.size() > 1 ? splittedObjectKey.getFirst() : null,
-                        localisationKey,
-                        splittedObjectKey.getLast().split("\\.")[0],
-                        localisations.get(localisationKey)));
+  private CompletableFuture<byte[]> content(final ObjectMetadata metadata) {
+    final ParsedLocalisationFile parsed = parsedFile(metadata.key);
+    if (parsed != null && parsed.isCurrent(metadata)) {
+      return CompletableFuture.completedFuture(parsed.content());
+    }
+    return dokumenttipalvelu
+        .getObjectBytes(metadata.key)
+        .thenApply(ResponseBytes::asByteArrayUnsafe);
+  }
+
+  /**
+   * Content hash by file name for localisation files in given namespaces, file names are the same
+   * as in the zip from {@link #getLocalisationFilesZip}.
+   */
+  public Map<String, String> getLocalisationFilesManifest(final Collection<String> namespaces) {
+    return manifest(
+        withMatchingNamespaces(
+            dokumenttipalvelu.cachedFind(List.of(LOKALISOINTI_TAG)), namespaces));
+  }
+
+  private Map<String, String> manifest(final Collection<ObjectMetadata> objects) {
+    final Map<String, ParsedLocalisationFile> parsed = loadParsedFiles(objects).join();
+    final Map<String, String> manifest = new TreeMap<>();
+    for (final ObjectMetadata metadata : objects) {
+      final ParsedLocalisationFile file = parsed.get(metadata.key);
+      if (file != null) {
+        manifest.put(parseKey(metadata.key).copyFileName(), sha256(file.content()));
       }
-    } catch (final Exception ex) {
-      throw new RuntimeException(ex);
     }
+    return manifest;
   }
 
-  public ResponseInputStream<GetObjectResponse> getLocalisationFile(
-      final String namespace,
-      final String locale,
-      final String ifNoneMatch,
-      final Instant ifModifiedSince) {
-    final String key =
-        namespace != null && !namespace.isEmpty()
-            ? String.format("t-%s/%s/%s/%s.json", LOKALISOINTI_TAG, tolgeeSlug, namespace, locale)
-            : String.format("t-%s/%s/%s.json", LOKALISOINTI_TAG, tolgeeSlug, locale);
-    return dokumenttipalvelu.getObject(key, ifNoneMatch, ifModifiedSince);
+  private List<ObjectMetadata> withMatchingNamespaces(
+      final Collection<ObjectMetadata> objects, final Collection<String> namespaces) {
+    return objects.stream()
+        .filter(metadata -> !metadata.key.endsWith("/"))
+        .filter(
+            metadata ->
+                namespaces == null
+                    || namespaces.isEmpty()
+                    || namespaces.contains(parseKey(metadata.key).namespace()))
+        .toList();
   }
 
-  public HeadObjectResponse getLocalisationFileHead(final String namespace, final String locale) {
-    final String key =
-        namespace != null && !namespace.isEmpty()
-            ? String.format("t-%s/%s/%s/%s.json", LOKALISOINTI_TAG, tolgeeSlug, namespace, locale)
-            : String.format("t-%s/%s/%s.json", LOKALISOINTI_TAG, tolgeeSlug, locale);
-    return dokumenttipalvelu.getHead(key);
+  /**
+   * Parts of an object key t-lokalisointi/slug/namespace/locale.json, namespace is null for keys
+   * without one.
+   */
+  private record ObjectKey(String namespace, String fileName) {
+    String locale() {
+      return fileName.split("\\.")[0];
+    }
+
+    /** File name used when copying between environments: namespace/locale.json or locale.json. */
+    String copyFileName() {
+      return namespace != null && !namespace.isEmpty()
+          ? String.format("%s/%s", namespace, fileName)
+          : fileName;
+    }
+  }
+
+  private ObjectKey parseKey(final String key) {
+    final List<String> splittedObjectKey =
+        Arrays.stream(key.split("/"))
+            .filter(s -> !s.equals(String.format("t-%s", LOKALISOINTI_TAG)))
+            .filter(s -> !s.equals(tolgeeSlug))
+            .toList();
+    return new ObjectKey(
+        splittedObjectKey.size() > 1 ? splittedObjectKey.getFirst() : null,
+        splittedObjectKey.getLast());
+  }
+
+  private String objectKey(final String fileName) {
+    return String.format("t-%s/%s/%s", LOKALISOINTI_TAG, tolgeeSlug, fileName);
+  }
+
+  private static String sha256(final byte[] content) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private ParsedLocalisationFile parse(final ObjectMetadata metadata, final byte[] content) {
+    LOG.debug("Parsing localisation file {}", metadata.key);
+    final ObjectKey objectKey = parseKey(metadata.key);
+    final String namespace = objectKey.namespace();
+    final String locale = objectKey.locale();
+    try {
+      return new ParsedLocalisationFile(
+          namespace,
+          locale,
+          metadata.eTag,
+          metadata.lastModified,
+          content,
+          Collections.unmodifiableList(LocalisationFileParser.parse(namespace, locale, content)));
+    } catch (final IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
   }
 }
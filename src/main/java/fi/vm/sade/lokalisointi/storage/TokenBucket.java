@@ -0,0 +1,44 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter that allows bursts of up to capacity calls and refills at a steady rate. Acquiring
+ * reserves a token and waits until it is available, callers wait without holding the lock.
+ */
+final class TokenBucket {
+  private final double tokensPerNanosecond;
+  private final double capacity;
+
+  /** Negative when tokens have been reserved ahead of the refill. */
+  private double tokens;
+
+  private long refilled = System.nanoTime();
+
+  TokenBucket(final double tokensPerSecond, final int capacity) {
+    if (!(tokensPerSecond > 0)) {
+      throw new IllegalArgumentException("Rate must be positive: " + tokensPerSecond);
+    }
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+    }
+    this.tokensPerNanosecond = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.capacity = capacity;
+    this.tokens = capacity;
+  }
+
+  void acquire() throws InterruptedException {
+    TimeUnit.NANOSECONDS.sleep(reserve());
+  }
+
+  /**
+   * @return nanoseconds until the reserved token is available
+   */
+  private synchronized long reserve() {
+    final long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - refilled) * tokensPerNanosecond);
+    refilled = now;
+    tokens -= 1;
+    return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNanosecond);
+  }
+}
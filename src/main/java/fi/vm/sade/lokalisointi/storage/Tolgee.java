@@ -1,23 +1,29 @@
 package fi.vm.sade.lokalisointi.storage;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
 import fi.vm.sade.lokalisointi.model.Localisation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.stereotype.Repository;
 import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestClient;
 
-import java.util.Collections;
-import java.util.Map;
+import java.util.*;
 
 import static org.springframework.http.MediaType.APPLICATION_JSON;
 
 @Repository
-public class Tolgee {
+public class Tolgee implements InitializingBean {
   private static final Logger LOG = LoggerFactory.getLogger(Tolgee.class);
   private static final String API_KEY = "X-API-Key";
+  private final ObjectMapper mapper = JsonMapper.builder().build();
 
   @Value("${tolgee.baseurl}")
   private String baseUrl;
@@ -28,46 +34,154 @@ public class Tolgee {
   @Value("${tolgee.projectid}")
   private String projectId;
 
-  private final RestClient.Builder restClientBuilder;
+  @Value("${tolgee.import-batch-size:100}")
+  private Integer importBatchSize;
 
-  public Tolgee() {
-    this.restClientBuilder =
-        RestClient.builder().requestFactory(new HttpComponentsClientHttpRequestFactory());
+  @Value("${tolgee.import-max-payload-bytes:1000000}")
+  private Integer importMaxPayloadBytes;
+
+  @Value("${tolgee.import-rate-per-second:5}")
+  private Double importRatePerSecond;
+
+  @Value("${tolgee.import-burst:5}")
+  private Integer importBurst;
+
+  private final ClientHttpRequestFactory requestFactory;
+  private RestClient restClient;
+  private TokenBucket rateLimit;
+
+  @Autowired
+  public Tolgee(final ClientHttpRequestFactory requestFactory) {
+    this.requestFactory = requestFactory;
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    restClient = RestClient.builder().requestFactory(requestFactory).baseUrl(baseUrl).build();
+    rateLimit = new TokenBucket(importRatePerSecond, importBurst);
   }
 
-  public boolean importKey(final Localisation localisation) {
-    final RestClient restClient = restClientBuilder.baseUrl(baseUrl).build();
+  /**
+   * Imports localisations to Tolgee in batches of at most importBatchSize keys and
+   * importMaxPayloadBytes bytes. Localisations of the same key are imported as one key with a
+   * translation per locale. A batch rejected by Tolgee is split to find the keys that were not
+   * accepted. Requests are rate limited to importRatePerSecond.
+   */
+  public ImportResult importKeys(final Collection<Localisation> localisations) {
+    final Map<KeyName, List<Localisation>> byKey = new LinkedHashMap<>();
+    localisations.forEach(
+        localisation ->
+            byKey
+                .computeIfAbsent(
+                    new KeyName(localisation.getNamespace(), localisation.getKey()),
+                    k -> new ArrayList<>())
+                .add(localisation));
+    final ImportResult result = new ImportResult(new ArrayList<>(), new ArrayList<>());
+    final List<KeyImport> batch = new ArrayList<>();
+    int batchBytes = 0;
+    for (final List<Localisation> translations : byKey.values()) {
+      final KeyImport key = keyImport(translations);
+      if (!batch.isEmpty()
+          && (batch.size() >= importBatchSize
+              || batchBytes + key.bytes() > importMaxPayloadBytes)) {
+        importBatch(batch, result);
+        batch.clear();
+        batchBytes = 0;
+      }
+      batch.add(key);
+      batchBytes += key.bytes();
+    }
+    if (!batch.isEmpty()) {
+      importBatch(batch, result);
+    }
+    return result;
+  }
+
+  /**
+   * Localisations imported and localisations that could not be imported for now (Tolgee
+   * unavailable or rate limited) and may be retried later. The rest were rejected by Tolgee.
+   */
+  public record ImportResult(List<Localisation> imported, List<Localisation> retryable) {}
+
+  private record KeyName(String namespace, String name) {}
+
+  private record KeyImport(List<Localisation> localisations, Map<String, Object> key, int bytes) {}
+
+  private KeyImport keyImport(final List<Localisation> translations) {
+    final Map<String, Object> texts = new LinkedHashMap<>();
+    translations.forEach(
+        localisation ->
+            texts.put(
+                localisation.getLocale(),
+                Map.of("text", localisation.getValue(), "resolution", "NEW")));
+    final Map<String, Object> key = new LinkedHashMap<>();
+    key.put("name", translations.getFirst().getKey());
+    key.put("namespace", translations.getFirst().getNamespace());
+    key.put("translations", texts);
+    try {
+      return new KeyImport(translations, key, mapper.writeValueAsBytes(key).length);
+    } catch (final JsonProcessingException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private void importBatch(final List<KeyImport> batch, final ImportResult result) {
+    try {
+      rateLimit.acquire();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      batch.forEach(key -> result.retryable().addAll(key.localisations()));
+      return;
+    }
     try {
       restClient
           .post()
           .uri(String.format("/v2/projects/%s/keys/import-resolvable", projectId))
-          .body(
-              Map.of(
-                  "keys",
-                  Collections.singletonList(
-                      Map.of(
-                          "name",
-                          localisation.getKey(),
-                          "namespace",
-                          localisation.getNamespace(),
-                          "translations",
-                          Map.of(
-                              localisation.getLocale(),
-                              Map.of("text", localisation.getValue(), "resolution", "NEW"))))))
+          .body(Map.of("keys", batch.stream().map(KeyImport::key).toList()))
           .contentType(APPLICATION_JSON)
           .accept(APPLICATION_JSON)
           .header(API_KEY, apiKey)
           .retrieve()
           .toEntity(String.class);
-      return true;
+      batch.forEach(key -> result.imported().addAll(key.localisations()));
     } catch (final HttpStatusCodeException e) {
+      if (batch.size() > 1 && isRejectedContent(e)) {
+        LOG.info(
+            "Tolgee rejected a batch of {} keys ({}), importing in smaller batches",
+            batch.size(),
+            e.getStatusCode());
+        importBatch(batch.subList(0, batch.size() / 2), result);
+        importBatch(batch.subList(batch.size() / 2, batch.size()), result);
+        return;
+      }
+      if (isRetryable(e)) {
+        LOG.warn(
+            "Tolgee ({}) could not import {} keys for now: {}",
+            baseUrl,
+            batch.size(),
+            e.getStatusCode());
+        batch.forEach(key -> result.retryable().addAll(key.localisations()));
+        return;
+      }
       LOG.warn(
-          "Localisation {} was not imported to Tolgee ({}): ({}) {}",
-          localisation,
+          "Localisations {} were not imported to Tolgee ({}): ({}) {}",
+          batch.stream().flatMap(key -> key.localisations().stream()).toList(),
           baseUrl,
           e.getStatusCode(),
           e.getResponseBodyAsString());
-      return false;
+    } catch (final ResourceAccessException e) {
+      LOG.warn("Tolgee ({}) could not be reached: {}", baseUrl, e.getMessage());
+      batch.forEach(key -> result.retryable().addAll(key.localisations()));
     }
   }
+
+  private static boolean isRetryable(final HttpStatusCodeException e) {
+    return e.getStatusCode().is5xxServerError() || e.getStatusCode().value() == 429;
+  }
+
+  /** Client errors caused by the content of the batch, other failures apply to all keys. */
+  private static boolean isRejectedContent(final HttpStatusCodeException e) {
+    return e.getStatusCode().is4xxClientError()
+        && !Set.of(401, 403, 429).contains(e.getStatusCode().value());
+  }
 }
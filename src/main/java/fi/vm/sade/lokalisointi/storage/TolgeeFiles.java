@@ -0,0 +1,103 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import fi.vm.sade.lokalisointi.model.Localisation;
+import fi.vm.sade.lokalisointi.model.LocalisationOverride;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Localisation files in Tolgee format with overrides merged in. A merged file is built once per
+ * localisation snapshot from the published file and overrides the snapshot was built from, and
+ * served as bytes with a content hash ETag, the gzip variant is kept with it. Files without
+ * overrides are served as they are in S3.
+ */
+@Repository
+public class TolgeeFiles {
+  private static final Logger LOG = LoggerFactory.getLogger(TolgeeFiles.class);
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private final LocalisationIndex localisationIndex;
+
+  private record FileKey(String namespace, String locale) {}
+
+  @Autowired
+  public TolgeeFiles(final LocalisationIndex localisationIndex) {
+    this.localisationIndex = localisationIndex;
+  }
+
+  /**
+   * @return merged file or null if there is no localisation file nor overrides for given namespace
+   *     and locale
+   */
+  public LocalisationFile get(final String namespace, final String locale) {
+    final FileKey fileKey =
+        new FileKey(namespace != null && !namespace.isEmpty() ? namespace : null, locale);
+    final LocalisationSnapshot snapshot = localisationIndex.current();
+    return snapshot.artifact(fileKey, () -> merge(fileKey, snapshot));
+  }
+
+  /**
+   * Last modified of a merged file is the latest of the published file's last modified, the
+   * overrides' updated times and the latest removal of an override from the file, so it never goes
+   * back and every node serving the same snapshot returns the same value.
+   */
+  private LocalisationFile merge(final FileKey fileKey, final LocalisationSnapshot snapshot) {
+    final LocalisationFile file = snapshot.publishedFile(fileKey.namespace(), fileKey.locale());
+    final List<LocalisationOverride> overrides =
+        snapshot.overrides(fileKey.namespace(), fileKey.locale());
+    final Instant removed = snapshot.overridesRemoved(fileKey.namespace(), fileKey.locale());
+    if (overrides.isEmpty()) {
+      return file == null || removed == null || !removed.isAfter(file.lastModified())
+          ? file
+          : new LocalisationFile(file.payload(), file.eTag(), removed);
+    }
+    LOG.debug("Merging {} overrides to {}", overrides.size(), fileKey);
+    final byte[] content = serialize(snapshot.file(fileKey.namespace(), fileKey.locale()));
+    final Instant lastModified =
+        Stream.of(
+                Stream.ofNullable(file).map(LocalisationFile::lastModified),
+                Stream.ofNullable(removed),
+                overrides.stream()
+                    .map(o -> o.getUpdated().atZone(ZoneId.systemDefault()).toInstant()))
+            .flatMap(times -> times)
+            .max(Comparator.naturalOrder())
+            .orElseThrow();
+    return new LocalisationFile(
+        Payload.of(content), "\"%s\"".formatted(sha256(content)), lastModified);
+  }
+
+  private static byte[] serialize(final Collection<Localisation> localisations) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (final JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+      generator.writeStartObject();
+      for (final Localisation localisation : localisations) {
+        generator.writeStringField(localisation.getKey(), localisation.getValue());
+      }
+      generator.writeEndObject();
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  private static String sha256(final byte[] content) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content), 0, 16);
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import fi.vm.sade.lokalisointi.model.Localisation;
+import fi.vm.sade.lokalisointi.model.MassUpdateResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Localisations waiting to be imported to Tolgee, persisted in the tolgee_import table. Imports are
+ * processed in the background by one worker thread per node. A node claims an import for leaseMs
+ * in a short transaction and calls Tolgee without a transaction open, an import whose lease has
+ * expired without a result is claimed again. Localisations Tolgee could not import for now are
+ * retried with exponential backoff up to maxAttempts times.
+ */
+@Component
+public class TolgeeImportQueue implements SmartLifecycle {
+  private static final Logger LOG = LoggerFactory.getLogger(TolgeeImportQueue.class);
+  private static final String QUEUED = "QUEUED";
+  private static final String PROCESSING = "PROCESSING";
+  private static final String DONE = "DONE";
+  private static final TypeReference<List<Localisation>> LOCALISATIONS = new TypeReference<>() {};
+  private final ObjectMapper mapper = JsonMapper.builder().build();
+  private final JdbcTemplate jdbcTemplate;
+  private final Tolgee tolgee;
+  private final Object signal = new Object();
+  private boolean signalled;
+  private volatile Thread worker;
+
+  @Value("${tolgee.import-queue.enabled:true}")
+  private Boolean enabled;
+
+  @Value("${tolgee.import-queue.poll-interval-ms:5000}")
+  private Long pollIntervalMs;
+
+  @Value("${tolgee.import-queue.max-attempts:5}")
+  private Integer maxAttempts;
+
+  @Value("${tolgee.import-queue.initial-backoff-ms:1000}")
+  private Long initialBackoffMs;
+
+  @Value("${tolgee.import-queue.max-backoff-ms:300000}")
+  private Long maxBackoffMs;
+
+  /** How long a claimed import is left to the node processing it. */
+  @Value("${tolgee.import-queue.lease-ms:600000}")
+  private Long leaseMs;
+
+  @Autowired
+  public TolgeeImportQueue(final JdbcTemplate jdbcTemplate, final Tolgee tolgee) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.tolgee = tolgee;
+  }
+
+  /**
+   * @param notModified number of localisations in the update that are not imported
+   * @return id of the queued import
+   */
+  public Integer enqueue(
+      final Collection<Localisation> localisations,
+      final int notModified,
+      final String createdBy) {
+    final Integer id =
+        jdbcTemplate.queryForObject(
+            """
+            INSERT INTO tolgee_import (status, localisations, not_modified_count, created_by)
+            VALUES (?, ?, ?, ?) RETURNING id""",
+            Integer.class,
+            QUEUED,
+            toJson(localisations),
+            notModified,
+            createdBy);
+    LOG.info("Queued import {} of {} localisations to Tolgee", id, localisations.size());
+    synchronized (signal) {
+      signalled = true;
+      signal.notifyAll();
+    }
+    return id;
+  }
+
+  public Optional<MassUpdateResult> status(final Integer id) {
+    return jdbcTemplate
+        .query(
+            """
+            SELECT status, created_count, not_modified_count
+            FROM tolgee_import WHERE id = ?""",
+            (rs, rowNum) -> {
+              final MassUpdateResult result = new MassUpdateResult();
+              result.setImportId(id);
+              result.setStatus(rs.getString("status").equals(DONE) ? "OK" : "Queued");
+              result.setCreated(rs.getInt("created_count"));
+              result.setNotModified(rs.getInt("not_modified_count"));
+              return result;
+            },
+            id)
+        .stream()
+        .findFirst();
+  }
+
+  /**
+   * Processes the next import that is due and not being processed by another node.
+   *
+   * @return false if there was no such import
+   */
+  boolean processNext() {
+    giveUpExpired();
+    final Optional<QueuedImport> next = claimNext();
+    next.ifPresent(this::process);
+    return next.isPresent();
+  }
+
+  /**
+   * Finishes imports whose lease has expired after maxAttempts claims, their remaining
+   * localisations are counted as not imported.
+   */
+  private void giveUpExpired() {
+    final int givenUp =
+        jdbcTemplate.update(
+            """
+            UPDATE tolgee_import SET status = ?, localisations = '[]', locked_until = NULL,
+              not_modified_count = not_modified_count + json_array_length(localisations::json),
+              updated = now()
+            WHERE status = ? AND locked_until < now() AND attempts >= ?""",
+            DONE,
+            PROCESSING,
+            maxAttempts);
+    if (givenUp > 0) {
+      LOG.warn("Gave up {} imports that were not processed in {} attempts", givenUp, maxAttempts);
+    }
+  }
+
+  /**
+   * Claims the next import that is due or whose lease has expired. The claim counts as an attempt,
+   * so an import whose processing keeps dying is given up after maxAttempts claims.
+   */
+  private Optional<QueuedImport> claimNext() {
+    return jdbcTemplate
+        .query(
+            """
+            UPDATE tolgee_import SET status = ?, attempts = attempts + 1, locked_until = ?,
+              updated = now()
+            WHERE id = (
+              SELECT id FROM tolgee_import
+              WHERE (status = ? AND next_attempt <= now())
+                OR (status = ? AND locked_until < now() AND attempts < ?)
+              ORDER BY id LIMIT 1 FOR UPDATE SKIP LOCKED)
+            RETURNING id, localisations, attempts""",
+            (rs, rowNum) ->
+                new QueuedImport(
+                    rs.getInt("id"),
+                    fromJson(rs.getString("localisations")),
+                    rs.getInt("attempts")),
+            PROCESSING,
+            Timestamp.from(Instant.now().plusMillis(leaseMs)),
+            QUEUED,
+            PROCESSING,
+            maxAttempts)
+        .stream()
+        .findFirst();
+  }
+
+  private record QueuedImport(Integer id, List<Localisation> localisations, int attempt) {}
+
+  /** Localisations of an import that fails unexpectedly are not imported nor retried. */
+  private Tolgee.ImportResult importKeys(final QueuedImport queued) {
+    try {
+      return tolgee.importKeys(queued.localisations());
+    } catch (final RuntimeException e) {
+      LOG.error("Import {} failed, localisations were not imported", queued.id(), e);
+      return new Tolgee.ImportResult(List.of(), List.of());
+    }
+  }
+
+  private void process(final QueuedImport queued) {
+    final Tolgee.ImportResult result = importKeys(queued);
+    result.imported().forEach(l -> LOG.info("Imported localisation to Tolgee: {}", l));
+    final boolean retry = !result.retryable().isEmpty() && queued.attempt() < maxAttempts;
+    final int rejected =
+        queued.localisations().size()
+            - result.imported().size()
+            - (retry ? result.retryable().size() : 0);
+    final long backoffMs =
+        Math.min(initialBackoffMs << Math.min(queued.attempt() - 1, 30), maxBackoffMs);
+    if (retry) {
+      LOG.info(
+          "Retrying import {} of {} localisations in {} ms",
+          queued.id(),
+          result.retryable().size(),
+          backoffMs);
+    } else {
+      LOG.info(
+          "Import {} done: {} imported, {} not imported",
+          queued.id(),
+          result.imported().size(),
+          rejected);
+    }
+    // the attempt identifies the claim, the import may have been claimed again after the lease
+    final int updated =
+        jdbcTemplate.update(
+            """
+            UPDATE tolgee_import SET status = ?, localisations = ?, locked_until = NULL,
+              created_count = created_count + ?, not_modified_count = not_modified_count + ?,
+              next_attempt = ?, updated = now()
+            WHERE id = ? AND status = ? AND attempts = ?""",
+            retry ? QUEUED : DONE,
+            toJson(retry ? result.retryable() : List.of()),
+            result.imported().size(),
+            rejected,
+            Timestamp.from(Instant.now().plusMillis(backoffMs)),
+            queued.id(),
+            PROCESSING,
+            queued.attempt());
+    if (updated == 0) {
+      LOG.warn("Lease of import {} expired before it was processed", queued.id());
+    }
+  }
+
+  private void work() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        while (processNext()) {
+          if (Thread.currentThread().isInterrupted()) {
+            return;
+          }
+        }
+      } catch (final RuntimeException e) {
+        LOG.error("Failed to process Tolgee imports", e);
+      }
+      try {
+        synchronized (signal) {
+          if (!signalled) {
+            signal.wait(pollIntervalMs);
+          }
+          signalled = false;
+        }
+      } catch (final InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private String toJson(final Collection<Localisation> localisations) {
+    try {
+      return mapper.writeValueAsString(localisations);
+    } catch (final JsonProcessingException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private List<Localisation> fromJson(final String localisations) {
+    try {
+      return mapper.readValue(localisations, LOCALISATIONS);
+    } catch (final JsonProcessingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public synchronized void start() {
+    if (enabled && worker == null) {
+      worker = Thread.ofPlatform().name("tolgee-import").daemon().start(this::work);
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (worker != null) {
+      worker.interrupt();
+      worker = null;
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    return worker != null;
+  }
+}
@@ -0,0 +1,17 @@
+CREATE TABLE IF NOT EXISTS copy_job (
+    id SERIAL NOT NULL PRIMARY KEY,
+    source VARCHAR(20) NOT NULL,
+    namespaces TEXT,
+    state VARCHAR(20) NOT NULL,
+    total_files INTEGER NOT NULL DEFAULT 0,
+    copied_files INTEGER NOT NULL DEFAULT 0,
+    created TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    created_by TEXT NOT NULL,
+    updated TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS copy_job_source_state ON copy_job (source, state);
+
+-- only one running job with the same source and namespaces
+CREATE UNIQUE INDEX IF NOT EXISTS copy_job_running ON copy_job (source, COALESCE(namespaces, ''))
+    WHERE state = 'RUNNING';
@@ -0,0 +1,16 @@
+CREATE TABLE IF NOT EXISTS tolgee_import (
+    id SERIAL NOT NULL PRIMARY KEY,
+    status VARCHAR(20) NOT NULL,
+    localisations TEXT NOT NULL,
+    created_count INTEGER NOT NULL DEFAULT 0,
+    not_modified_count INTEGER NOT NULL DEFAULT 0,
+    attempts INTEGER NOT NULL DEFAULT 0,
+    next_attempt TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    locked_until TIMESTAMP WITH TIME ZONE,
+    created TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    created_by TEXT NOT NULL,
+    updated TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS tolgee_import_queued ON tolgee_import (next_attempt) WHERE status = 'QUEUED';
+CREATE INDEX IF NOT EXISTS tolgee_import_processing ON tolgee_import (locked_until) WHERE status = 'PROCESSING';
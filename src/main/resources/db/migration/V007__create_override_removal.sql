@@ -0,0 +1,8 @@
+CREATE TABLE IF NOT EXISTS localisation_override_removal (
+    namespace VARCHAR(100),
+    locale CHAR(2) NOT NULL,
+    removed TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+-- latest removal of an override from each localisation file
+CREATE UNIQUE INDEX IF NOT EXISTS localisation_override_removal_file ON localisation_override_removal ((COALESCE(namespace, '')), locale);
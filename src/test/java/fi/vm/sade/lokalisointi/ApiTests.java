@@ -1,9 +1,16 @@
 package fi.vm.sade.lokalisointi;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.github.benmanes.caffeine.cache.LoadingCache;
 import fi.vm.sade.lokalisointi.configuration.DevConfiguration;
 import fi.vm.sade.lokalisointi.model.Localisation;
 import fi.vm.sade.lokalisointi.model.LocalisationOverride;
+import fi.vm.sade.lokalisointi.model.MassUpdateResult;
+import fi.vm.sade.lokalisointi.model.OphEnvironment;
+import fi.vm.sade.lokalisointi.storage.LocalisationSnapshot;
+import fi.vm.sade.lokalisointi.storage.S3;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.junit.jupiter.api.BeforeEach;
@@ -11,7 +18,9 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.web.servlet.MvcResult;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
@@ -20,15 +29,24 @@ import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.jupiter.api.Assertions.*;
@@ -40,6 +58,9 @@ public class ApiTests extends IntegrationTestBase {
   private String tolgeeSlug;
 
   @Autowired private CacheManager cacheManager;
+  @Autowired private JdbcTemplate jdbcTemplate;
+  @Autowired private MeterRegistry meterRegistry;
+  @Autowired private S3 s3;
 
   @BeforeEach
   public void reset() throws IOException {
@@ -61,12 +82,14 @@ public class ApiTests extends IntegrationTestBase {
     DevConfiguration.addLocalisationFiles(
         dokumenttipalvelu, clientBuilder, BUCKET_NAME, tolgeeSlug);
     database.deleteAllOverrides();
+    jdbcTemplate.update("DELETE FROM copy_job");
     cacheManager
         .getCacheNames()
         .forEach(
             name -> {
               cacheManager.getCache(name).clear();
             });
+    localisationIndex.rebuild();
   }
 
   @Test
@@ -189,6 +212,200 @@ public class ApiTests extends IntegrationTestBase {
         .andExpect(header().string("Cache-Control", "no-cache"));
   }
 
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testGetLocalisationBundle() throws Exception {
+    addLocalisationOverride("example", "testi", "fi", "Testi");
+    final MvcResult result =
+        mvc.perform(
+                get("/api/v1/localisation/bundle?namespace=example&locale=fi&locale=sv")
+                    .accept(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+            .andExpect(header().string("Cache-Control", "max-age=600, public"))
+            .andExpect(jsonPath("$.example.fi.testi", is("Testi")))
+            .andExpect(jsonPath("$.example.sv", notNullValue()))
+            .andReturn();
+    mvc.perform(
+            get("/api/v1/localisation/bundle?locale=sv&namespace=example&locale=fi")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("If-None-Match", result.getResponse().getHeader("ETag")))
+        .andExpect(status().isNotModified());
+  }
+
+  @Test
+  public void testGetLocalisationBundleWithTooManyNamespacesReturnsError() throws Exception {
+    final StringBuilder url = new StringBuilder("/api/v1/localisation/bundle?locale=fi");
+    for (int i = 0; i < 51; i++) {
+      url.append("&namespace=ns").append(i);
+    }
+    mvc.perform(get(url.toString()).accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isBadRequest());
+    assertEquals(0, localisationIndex.current().serializedCount());
+  }
+
+  @Test
+  public void testGetLocalisationsGzipCompressed() throws Exception {
+    final MvcResult result =
+        mvc.perform(
+                get("/api/v1/localisation")
+                    .accept(MediaType.APPLICATION_JSON)
+                    .header("Accept-Encoding", "br;q=1.0, gzip;q=0.8"))
+            .andExpect(status().isOk())
+            .andExpect(header().string("Content-Encoding", "gzip"))
+            .andReturn();
+    assertVaryByAcceptEncoding(result);
+    final byte[] gzipped = result.getResponse().getContentAsByteArray();
+    assertEquals(gzipped.length, result.getResponse().getContentLength());
+    final List<Localisation> localisations =
+        objectMapper.readValue(
+            new GZIPInputStream(new ByteArrayInputStream(gzipped)), listOfLocalisations);
+    assertEquals(102, localisations.size());
+
+    final String eTag = result.getResponse().getHeader("ETag");
+    mvc.perform(
+            get("/api/v1/localisation")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Accept-Encoding", "gzip")
+                .header("If-None-Match", eTag))
+        .andExpect(status().isNotModified());
+    mvc.perform(
+            get("/api/v1/localisation")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("Accept-Encoding", "gzip;q=0")
+                .header("If-None-Match", eTag))
+        .andExpect(status().isOk())
+        .andExpect(header().doesNotExist("Content-Encoding"))
+        .andExpect(jsonPath("$.length()", is(102)));
+
+    assertVaryByAcceptEncoding(
+        mvc.perform(
+                get("/tolgee/example/fi.json")
+                    .accept(MediaType.APPLICATION_OCTET_STREAM)
+                    .header("Accept-Encoding", "gzip"))
+            .andExpect(status().isOk())
+            .andExpect(header().string("Content-Encoding", "gzip"))
+            .andReturn());
+  }
+
+  private static void assertVaryByAcceptEncoding(final MvcResult result) {
+    assertTrue(
+        result.getResponse().getHeaders("Vary").stream()
+            .anyMatch(vary -> vary.contains("Accept-Encoding")),
+        result.getResponse().getHeaders("Vary").toString());
+  }
+
+  @Test
+  public void testRepeatedQueriesAreSerializedOnce() throws Exception {
+    final LocalisationSnapshot snapshot = localisationIndex.current();
+    final Set<String> responses = new HashSet<>();
+    for (int i = 0; i < 3; i++) {
+      responses.add(
+          mvc.perform(
+                  get("/api/v1/localisation?namespace=example").accept(MediaType.APPLICATION_JSON))
+              .andExpect(status().isOk())
+              .andReturn()
+              .getResponse()
+              .getContentAsString());
+      mvc.perform(
+              get("/api/v1/localisation?namespace=example&locale=fi")
+                  .accept(MediaType.APPLICATION_JSON))
+          .andExpect(status().isOk())
+          .andExpect(jsonPath("$.length()", is(3)));
+    }
+    // the first response was streamed and identical to the serialized ones
+    assertEquals(1, responses.size());
+    assertSame(snapshot, localisationIndex.current());
+    // one serialized response per distinct query, reused by the repeated queries
+    assertEquals(2, snapshot.serializedCount());
+  }
+
+  @Test
+  public void testQueriesRequestedOnceAreStreamed() throws Exception {
+    final LocalisationSnapshot snapshot = localisationIndex.current();
+    for (int i = 0; i < 500; i++) {
+      mvc.perform(get("/api/v1/localisation?key=missing." + i).accept(MediaType.APPLICATION_JSON))
+          .andExpect(status().isOk())
+          .andExpect(jsonPath("$.length()", is(0)));
+    }
+    assertEquals(0, snapshot.serializedCount());
+
+    final MvcResult streamed =
+        mvc.perform(
+                get("/api/v1/localisation?namespace=example").accept(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+            .andExpect(header().string("ETag", notNullValue()))
+            .andExpect(header().string("Cache-Control", "max-age=600, public"))
+            .andExpect(header().doesNotExist("Content-Encoding"))
+            .andExpect(jsonPath("$.length()", is(6)))
+            .andReturn();
+    assertVaryByAcceptEncoding(streamed);
+    final MvcResult gzipped =
+        mvc.perform(
+                get("/api/v1/localisation?namespace=example")
+                    .accept(MediaType.APPLICATION_JSON)
+                    .header("Accept-Encoding", "gzip"))
+            .andExpect(status().isOk())
+            .andExpect(header().string("Content-Encoding", "gzip"))
+            .andReturn();
+    // the second request of the query is kept with the snapshot
+    assertEquals(1, snapshot.serializedCount());
+    assertNotEquals(
+        streamed.getResponse().getHeader("ETag"), gzipped.getResponse().getHeader("ETag"));
+    assertArrayEquals(
+        streamed.getResponse().getContentAsByteArray(),
+        new GZIPInputStream(new ByteArrayInputStream(gzipped.getResponse().getContentAsByteArray()))
+            .readAllBytes());
+    mvc.perform(
+            get("/api/v1/localisation?namespace=example")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("If-None-Match", streamed.getResponse().getHeader("ETag")))
+        .andExpect(status().isNotModified());
+    mvc.perform(
+            get("/api/v1/localisation/bundle?namespace=example&locale=fi")
+                .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.example.fi.length()", is(3)));
+    assertEquals(1, snapshot.serializedCount());
+    assertSame(snapshot, localisationIndex.current());
+  }
+
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testGetLocalisationsReturnsNotModifiedForMatchingETag() throws Exception {
+    final String eTag =
+        mvc.perform(
+                get("/api/v1/localisation?namespace=example&locale=fi")
+                    .accept(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andExpect(header().string("ETag", notNullValue()))
+            .andReturn()
+            .getResponse()
+            .getHeader("ETag");
+    mvc.perform(
+            get("/api/v1/localisation?namespace=example&locale=fi")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("If-None-Match", eTag))
+        .andExpect(status().isNotModified())
+        .andExpect(header().string("ETag", eTag))
+        .andExpect(header().string("Cache-Control", "max-age=600, public"))
+        .andExpect(content().bytes(new byte[0]));
+    mvc.perform(
+            get("/api/v1/localisation?namespace=example&locale=sv")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("If-None-Match", eTag))
+        .andExpect(status().isOk());
+
+    addLocalisationOverride("example", "testi", "fi", "Testi");
+    mvc.perform(
+            get("/api/v1/localisation?namespace=example&locale=fi")
+                .accept(MediaType.APPLICATION_JSON)
+                .header("If-None-Match", eTag))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$[?(@.key == 'testi')].value", is(List.of("Testi"))));
+  }
+
   @WithMockUser("1.2.246.562.24.00000000001")
   @Test
   public void testAddOverride() throws Exception {
@@ -326,6 +543,153 @@ public class ApiTests extends IntegrationTestBase {
     assertEquals("Testi", l.getValue());
   }
 
+  @Test
+  public void testServesOverrideChangesAnnouncedByOtherNodes() throws Exception {
+    database.insertWithoutAnnouncing(
+        new LocalisationOverride("foobar", "fi", "remote", "Toinen solmu", "1.2.3", "1.2.3"));
+    mvc.perform(
+            get("/api/v1/localisation?namespace=foobar&key=remote")
+                .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().is2xxSuccessful())
+        .andExpect(jsonPath("$.length()", is(0)));
+
+    jdbcTemplate.execute("NOTIFY lokalisointi_changes, 'another-node:OVERRIDES'");
+    await()
+        .atMost(Duration.ofSeconds(10))
+        .untilAsserted(
+            () ->
+                mvc.perform(
+                        get("/api/v1/localisation?namespace=foobar&key=remote")
+                            .accept(MediaType.APPLICATION_JSON))
+                    .andExpect(status().is2xxSuccessful())
+                    .andExpect(jsonPath("$.length()", is(1)))
+                    .andExpect(jsonPath("$[0].value", is("Toinen solmu"))));
+  }
+
+  @Test
+  public void testLoadsOverridesChangedByOtherNodesByKey() throws Exception {
+    database.insertWithoutAnnouncing(
+        new LocalisationOverride("foobar", "fi", "remote", "Toinen solmu", "1.2.3", "1.2.3"));
+    SQL_RECORDER.clear();
+    jdbcTemplate.execute(
+        """
+        NOTIFY lokalisointi_changes,
+          'another-node:OVERRIDES:[{"namespace":"foobar","locale":"fi","key":"remote"}]'""");
+    await()
+        .atMost(Duration.ofSeconds(10))
+        .untilAsserted(
+            () ->
+                mvc.perform(
+                        get("/api/v1/localisation?namespace=foobar&key=remote")
+                            .accept(MediaType.APPLICATION_JSON))
+                    .andExpect(status().is2xxSuccessful())
+                    .andExpect(jsonPath("$[0].value", is("Toinen solmu"))));
+    final List<String> statements = overrideStatements();
+    assertFalse(statements.isEmpty());
+    assertTrue(
+        statements.stream().allMatch(sql -> sql.toLowerCase().contains("where")),
+        statements.toString());
+  }
+
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testQueriesDoNotReadOverridesFromDatabase() throws Exception {
+    addLocalisationOverride("example", "testi", "fi", "Testi");
+    SQL_RECORDER.clear();
+    mvc.perform(get("/api/v1/localisation").accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().is2xxSuccessful());
+    mvc.perform(
+            get("/api/v1/localisation?namespace=example&key=testi&locale=fi")
+                .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().is2xxSuccessful())
+        .andExpect(jsonPath("$[0].value", is("Testi")));
+    mvc.perform(get("/api/v1/override").accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().is2xxSuccessful())
+        .andExpect(jsonPath("$.length()", is(1)));
+    assertEquals(List.of(), overrideStatements());
+  }
+
+  private static List<String> overrideStatements() {
+    return SQL_RECORDER.statements().stream()
+        .filter(sql -> sql.toLowerCase().contains("localisation_override"))
+        .toList();
+  }
+
+  @Test
+  public void testOnlyChangedLocalisationFilesAreFetchedFromS3() throws Exception {
+    S3_RECORDER.clear();
+    s3.refreshFindCache();
+    localisationIndex.rebuild();
+    mvc.perform(get("/tolgee/example/fi.json").accept(MediaType.APPLICATION_OCTET_STREAM))
+        .andExpect(status().isOk());
+    mvc.perform(get("/api/v1/copy/manifest").accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk());
+    assertEquals(0, S3_RECORDER.requests(GetObjectRequest.class));
+
+    dokumenttipalvelu
+        .putObject(
+            "t-%s/%s/example/fi.json".formatted(S3.LOKALISOINTI_TAG, tolgeeSlug),
+            "fi.json",
+            "application/json",
+            new ByteArrayInputStream(
+                "{\"changed\": \"Muutettu\"}".getBytes(StandardCharsets.UTF_8)))
+        .join();
+    s3.refreshFindCache();
+    assertEquals(1, S3_RECORDER.requests(GetObjectRequest.class));
+    mvc.perform(get("/api/v1/localisation?namespace=example&locale=fi"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.length()", is(1)))
+        .andExpect(jsonPath("$[0].value", is("Muutettu")));
+  }
+
+  @Test
+  public void testUnparsableFilesDoNotStopRefresh() throws Exception {
+    mvc.perform(get("/api/v1/copy/manifest").accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.length()", is(6)));
+    mvc.perform(get("/api/v1/localisation?namespace=example&locale=fi"))
+        .andExpect(jsonPath("$.length()", is(3)));
+
+    final byte[] nested = "{\"nested\": {\"key\": \"value\"}}".getBytes(StandardCharsets.UTF_8);
+    CompletableFuture.allOf(
+            dokumenttipalvelu.putObject(
+                "t-%s/%s/broken/fi.json".formatted(S3.LOKALISOINTI_TAG, tolgeeSlug),
+                "fi.json",
+                "application/json",
+                new ByteArrayInputStream(nested)),
+            dokumenttipalvelu.putObject(
+                "t-%s/%s/example/fi.json".formatted(S3.LOKALISOINTI_TAG, tolgeeSlug),
+                "fi.json",
+                "application/json",
+                new ByteArrayInputStream(nested)),
+            dokumenttipalvelu.putObject(
+                "t-%s/%s/added/fi.json".formatted(S3.LOKALISOINTI_TAG, tolgeeSlug),
+                "fi.json",
+                "application/json",
+                new ByteArrayInputStream(
+                    "{\"uusi\": \"Uusi\"}".getBytes(StandardCharsets.UTF_8))))
+        .join();
+    s3.refreshFindCache();
+
+    // the new file without a previously parsed version is left out, the changed file keeps its
+    // previous version and the added file is published
+    final MvcResult manifest =
+        mvc.perform(get("/api/v1/copy/manifest").accept(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andReturn();
+    final Map<String, String> files =
+        objectMapper.readValue(
+            manifest.getResponse().getContentAsByteArray(),
+            new TypeReference<Map<String, String>>() {});
+    assertEquals(7, files.size());
+    assertTrue(files.containsKey("added/fi.json"));
+    assertFalse(files.containsKey("broken/fi.json"));
+    mvc.perform(get("/api/v1/localisation?namespace=example&locale=fi"))
+        .andExpect(jsonPath("$.length()", is(3)));
+    mvc.perform(get("/api/v1/localisation?namespace=added"))
+        .andExpect(jsonPath("$.length()", is(1)));
+  }
+
   @Test
   public void testGetLocalisationFilesArchive() throws Exception {
     final MvcResult mvcResult =
@@ -354,6 +718,8 @@ public class ApiTests extends IntegrationTestBase {
               "virkailijaraamit/fi.json",
               "fi.json"),
           zipEntries.stream().map(ZipEntry::getName).collect(Collectors.toSet()));
+      final List<String> names = zipEntries.stream().map(ZipEntry::getName).toList();
+      assertEquals(names.stream().sorted().toList(), names);
     }
   }
 
@@ -399,6 +765,61 @@ public class ApiTests extends IntegrationTestBase {
     assertEquals(Set.of("esimerkki", "lokalisointi"), namespaces);
   }
 
+  @Test
+  public void testAvailableNamespacesFromSourceAreCached() throws Exception {
+    final int requests = CopyControllerInUntuvaEnvironment.availableNamespacesRequests.get();
+    for (int i = 0; i < 3; i++) {
+      mvc.perform(
+              get("/api/v1/copy/available-namespaces?source=untuva")
+                  .accept(MediaType.APPLICATION_JSON))
+          .andExpect(status().is2xxSuccessful())
+          .andExpect(jsonPath("$.length()", is(2)));
+    }
+    assertEquals(requests + 1, CopyControllerInUntuvaEnvironment.availableNamespacesRequests.get());
+  }
+
+  @Test
+  public void testAvailableNamespacesFromSourceAreRefreshedInBackground() throws Exception {
+    mvc.perform(
+            get("/api/v1/copy/available-namespaces?source=untuva")
+                .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().is2xxSuccessful());
+    final int requests = CopyControllerInUntuvaEnvironment.availableNamespacesRequests.get();
+    @SuppressWarnings("unchecked")
+    final LoadingCache<Object, Object> cache =
+        (LoadingCache<Object, Object>)
+            ((CaffeineCache) cacheManager.getCache("available-namespaces")).getNativeCache();
+    // what refresh-after-write does on the first request after the interval
+    cache.refresh(OphEnvironment.untuva).join();
+    assertEquals(requests + 1, CopyControllerInUntuvaEnvironment.availableNamespacesRequests.get());
+    mvc.perform(
+            get("/api/v1/copy/available-namespaces?source=untuva")
+                .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().is2xxSuccessful())
+        .andExpect(jsonPath("$.length()", is(2)));
+    assertEquals(requests + 1, CopyControllerInUntuvaEnvironment.availableNamespacesRequests.get());
+  }
+
+  @Test
+  public void testHttpClientPoolMetrics() throws Exception {
+    mvc.perform(
+            get("/api/v1/copy/available-namespaces?source=untuva")
+                .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().is2xxSuccessful());
+    final Gauge max =
+        meterRegistry
+            .find("httpcomponents.httpclient.pool.total.max")
+            .tag("httpclient", "lokalisointi")
+            .gauge();
+    assertNotNull(max);
+    assertEquals(50, max.value());
+    assertNotNull(
+        meterRegistry
+            .find("httpcomponents.httpclient.pool.total.connections")
+            .tags("httpclient", "lokalisointi", "state", "available")
+            .gauge());
+  }
+
   @WithMockUser("1.2.246.562.24.00000000001")
   @Test
   public void testCopyAllLocalisationsFromAnotherEnvironment() throws Exception {
@@ -426,6 +847,79 @@ public class ApiTests extends IntegrationTestBase {
         localisations.stream().map(Localisation::getKey).collect(Collectors.toSet()));
   }
 
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testCopyLimitsUploadsInFlight() throws Exception {
+    S3_RECORDER.clear();
+    mvc.perform(
+            post("/api/v1/copy")
+                .accept(MediaType.APPLICATION_JSON)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsBytes(Map.of("source", "untuva"))))
+        .andExpect(status().is2xxSuccessful())
+        .andExpect(jsonPath("$.status", is("OK")));
+    assertEquals(6, S3_RECORDER.requests(PutObjectRequest.class));
+    // lokalisointi.s3.upload-concurrency is 2 in tests
+    assertTrue(S3_RECORDER.maxInFlight(PutObjectRequest.class) <= 2);
+  }
+
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testCopyDeletesStaleFilesInBatches() throws Exception {
+    final List<CompletableFuture<?>> puts = new ArrayList<>();
+    for (int i = 0; i < 1005; i++) {
+      puts.add(
+          dokumenttipalvelu.putObject(
+              "t-%s/%s/stale/fi-%04d.json".formatted(S3.LOKALISOINTI_TAG, tolgeeSlug, i),
+              "fi-%04d.json".formatted(i),
+              "application/json",
+              new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8))));
+      if (puts.size() == 50) {
+        CompletableFuture.allOf(puts.toArray(CompletableFuture[]::new)).join();
+        puts.clear();
+      }
+    }
+    CompletableFuture.allOf(puts.toArray(CompletableFuture[]::new)).join();
+    s3.refreshFindCache();
+    S3_RECORDER.clear();
+    S3_RECORDER.undeletable(
+        "t-%s/%s/stale/fi-0000.json".formatted(S3.LOKALISOINTI_TAG, tolgeeSlug));
+    try {
+      mvc.perform(
+              post("/api/v1/copy")
+                  .contentType(MediaType.APPLICATION_JSON)
+                  .content(objectMapper.writeValueAsBytes(Map.of("source", "untuva"))))
+          .andExpect(status().isInternalServerError())
+          .andExpect(jsonPath("$.status", is("Failed")));
+    } finally {
+      S3_RECORDER.clear();
+    }
+    // 1005 added and 4 original files not in the source, in batches of 1000 and 9
+    assertEquals(2, S3_RECORDER.requests(DeleteObjectsRequest.class));
+    assertEquals(
+        "FAILED",
+        jdbcTemplate.queryForObject(
+            "SELECT state FROM copy_job ORDER BY id DESC LIMIT 1", String.class));
+    final MvcResult manifest =
+        mvc.perform(get("/api/v1/copy/manifest").accept(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andReturn();
+    assertEquals(
+        Set.of(
+            "foobar/en.json",
+            "foobar/fi.json",
+            "lorem/en.json",
+            "lorem/fi.json",
+            "example/en.json",
+            "example/fi.json",
+            "stale/fi-0000.json"),
+        objectMapper
+            .readValue(
+                manifest.getResponse().getContentAsByteArray(),
+                new TypeReference<Map<String, String>>() {})
+            .keySet());
+  }
+
   @WithMockUser("1.2.246.562.24.00000000001")
   @Test
   public void testCopySelectedLocalisationsFromAnotherEnvironment() throws Exception {
@@ -454,6 +948,121 @@ public class ApiTests extends IntegrationTestBase {
         98, localisations.stream().map(Localisation::getKey).collect(Collectors.toSet()).size());
   }
 
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testCopyTransfersOnlyChangedFiles() throws Exception {
+    final byte[] copyAll = objectMapper.writeValueAsBytes(Map.of("source", "untuva"));
+    mvc.perform(post("/api/v1/copy").contentType(MediaType.APPLICATION_JSON).content(copyAll))
+        .andExpect(jsonPath("$.status", is("OK")));
+    final MvcResult manifest =
+        mvc.perform(get("/api/v1/copy/manifest").accept(MediaType.APPLICATION_JSON))
+            .andExpect(status().is2xxSuccessful())
+            .andReturn();
+    assertEquals(
+        Set.of(
+            "foobar/en.json",
+            "foobar/fi.json",
+            "lorem/en.json",
+            "lorem/fi.json",
+            "example/en.json",
+            "example/fi.json"),
+        objectMapper
+            .readValue(
+                manifest.getResponse().getContentAsByteArray(),
+                new TypeReference<Map<String, String>>() {})
+            .keySet());
+
+    final int archiveRequests = CopyControllerInUntuvaEnvironment.archiveRequests.get();
+    mvc.perform(post("/api/v1/copy").contentType(MediaType.APPLICATION_JSON).content(copyAll))
+        .andExpect(jsonPath("$.status", is("OK")));
+    assertEquals(archiveRequests, CopyControllerInUntuvaEnvironment.archiveRequests.get());
+    mvc.perform(get("/api/v1/localisation").accept(MediaType.APPLICATION_JSON))
+        .andExpect(jsonPath("$.length()", is(8)));
+  }
+
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testFailedCopyIsResumed() throws Exception {
+    final byte[] copyAll = objectMapper.writeValueAsBytes(Map.of("source", "untuva"));
+    CopyControllerInUntuvaEnvironment.unavailableFile = "lorem/fi.json";
+    try {
+      mvc.perform(post("/api/v1/copy").contentType(MediaType.APPLICATION_JSON).content(copyAll))
+          .andExpect(status().isInternalServerError())
+          .andExpect(jsonPath("$.status", is("Failed")));
+    } finally {
+      CopyControllerInUntuvaEnvironment.unavailableFile = null;
+    }
+    final Map<String, Object> failed =
+        jdbcTemplate.queryForMap("SELECT * FROM copy_job ORDER BY id DESC LIMIT 1");
+    assertEquals("FAILED", failed.get("state"));
+    assertEquals(4, failed.get("copied_files"));
+    // nothing is deleted before all files have been copied
+    mvc.perform(
+            get("/api/v1/localisation?namespace=lokalisointi").accept(MediaType.APPLICATION_JSON))
+        .andExpect(jsonPath("$.length()", greaterThan(0)));
+
+    final int archiveRequests = CopyControllerInUntuvaEnvironment.archiveRequests.get();
+    mvc.perform(post("/api/v1/copy").contentType(MediaType.APPLICATION_JSON).content(copyAll))
+        .andExpect(jsonPath("$.status", is("OK")));
+    assertEquals(archiveRequests + 1, CopyControllerInUntuvaEnvironment.archiveRequests.get());
+    final Map<String, Object> resumed =
+        jdbcTemplate.queryForMap("SELECT * FROM copy_job ORDER BY id DESC LIMIT 1");
+    assertEquals(failed.get("id"), resumed.get("id"));
+    assertEquals("COMPLETED", resumed.get("state"));
+    assertEquals(6, resumed.get("copied_files"));
+    mvc.perform(get("/api/v1/localisation").accept(MediaType.APPLICATION_JSON))
+        .andExpect(jsonPath("$.length()", is(8)));
+  }
+
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testFailedCopyWithNothingLeftToCopyIsCompleted() throws Exception {
+    final byte[] copyAll = objectMapper.writeValueAsBytes(Map.of("source", "untuva"));
+    mvc.perform(post("/api/v1/copy").contentType(MediaType.APPLICATION_JSON).content(copyAll))
+        .andExpect(jsonPath("$.status", is("OK")));
+    final Integer failed =
+        jdbcTemplate.queryForObject(
+            "INSERT INTO copy_job (source, state, created_by) VALUES ('untuva', 'FAILED', 'test') "
+                + "RETURNING id",
+            Integer.class);
+
+    mvc.perform(post("/api/v1/copy").contentType(MediaType.APPLICATION_JSON).content(copyAll))
+        .andExpect(jsonPath("$.status", is("OK")));
+    assertEquals(
+        "COMPLETED",
+        jdbcTemplate.queryForObject(
+            "SELECT state FROM copy_job WHERE id = ?", String.class, failed));
+  }
+
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testRunningCopyIsNotStartedAgain() throws Exception {
+    final byte[] copyAll = objectMapper.writeValueAsBytes(Map.of("source", "untuva"));
+    final Integer running =
+        jdbcTemplate.queryForObject(
+            "INSERT INTO copy_job (source, state, created_by) VALUES ('untuva', 'RUNNING', 'test') "
+                + "RETURNING id",
+            Integer.class);
+    mvc.perform(post("/api/v1/copy").contentType(MediaType.APPLICATION_JSON).content(copyAll))
+        .andExpect(status().isInternalServerError())
+        .andExpect(jsonPath("$.status", is("Failed")));
+    assertEquals(
+        "RUNNING",
+        jdbcTemplate.queryForObject(
+            "SELECT state FROM copy_job WHERE id = ?", String.class, running));
+
+    // a job that has not been checkpointed within lokalisointi.copy.stale-after-ms has died
+    jdbcTemplate.update(
+        "UPDATE copy_job SET updated = now() - interval '1 hour' WHERE id = ?", running);
+    mvc.perform(post("/api/v1/copy").contentType(MediaType.APPLICATION_JSON).content(copyAll))
+        .andExpect(jsonPath("$.status", is("OK")));
+    final Map<String, Object> resumed =
+        jdbcTemplate.queryForMap("SELECT * FROM copy_job ORDER BY id DESC LIMIT 1");
+    assertEquals(running, resumed.get("id"));
+    assertEquals("COMPLETED", resumed.get("state"));
+    assertEquals(6, resumed.get("copied_files"));
+  }
+
   @WithMockUser("1.2.246.562.24.00000000001")
   @Test
   public void testGetUiConfig() throws Exception {
@@ -467,6 +1076,180 @@ public class ApiTests extends IntegrationTestBase {
   @WithMockUser("1.2.246.562.24.00000000001")
   @Test
   public void testLocalisationUpdate() throws Exception {
+    final MvcResult queued =
+        mvc.perform(
+                post("/api/v1/localisation/update")
+                    .accept(MediaType.APPLICATION_JSON)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(
+                        objectMapper.writeValueAsBytes(
+                            List.of(
+                                new Localisation(null, "example", "key1", "fi", "Avain 1"),
+                                new Localisation(null, "example", "key2", "fi", "Avain 2")))))
+            .andExpect(status().isAccepted())
+            .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+            .andExpect(jsonPath("$.status", is("Queued")))
+            .andExpect(jsonPath("$.importId", notNullValue()))
+            .andReturn();
+    assertEquals(2, awaitImport(queued).getCreated());
+  }
+
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testLocalisationUpdateImportsKeysInBatches() throws Exception {
+    final List<Localisation> localisations = new ArrayList<>();
+    for (int i = 0; i < 12; i++) {
+      localisations.add(new Localisation(null, "example", "key" + i, "fi", "Avain " + i));
+      localisations.add(new Localisation(null, "example", "key" + i, "sv", "Nyckel " + i));
+    }
+    // rejected by Tolgee, the rest of its batch is still imported
+    localisations.add(new Localisation(null, null, "invalid", "fi", "Ei nimiavaruutta"));
+    final int requests = TolgeeMock.importRequests.get();
+    final MvcResult queued =
+        mvc.perform(
+                post("/api/v1/localisation/update")
+                    .accept(MediaType.APPLICATION_JSON)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(objectMapper.writeValueAsBytes(localisations)))
+            .andExpect(status().isAccepted())
+            .andReturn();
+    final MassUpdateResult result = awaitImport(queued);
+    assertEquals(24, result.getCreated());
+    assertEquals(1, result.getNotModified());
+    // batches of 10 and 3 keys, the latter is split until the invalid key is isolated,
+    // rejected requests do not reach the mock
+    assertEquals(requests + 3, TolgeeMock.importRequests.get());
+  }
+
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testLocalisationUpdateIsRetriedWhenTolgeeIsUnavailable() throws Exception {
+    TolgeeMock.unavailableResponses.set(2);
+    final MvcResult queued =
+        mvc.perform(
+                post("/api/v1/localisation/update")
+                    .accept(MediaType.APPLICATION_JSON)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(
+                        objectMapper.writeValueAsBytes(
+                            List.of(
+                                new Localisation(null, "example", "key1", "fi", "Avain 1"),
+                                new Localisation(null, "example", "key2", "fi", "Avain 2")))))
+            .andExpect(status().isAccepted())
+            .andReturn();
+    final MassUpdateResult result = awaitImport(queued);
+    assertEquals(2, result.getCreated());
+    assertEquals(
+        3,
+        jdbcTemplate.queryForObject(
+            "SELECT attempts FROM tolgee_import WHERE id = ?",
+            Integer.class,
+            result.getImportId()));
+  }
+
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testLocalisationUpdateIsNotLockedWhileTolgeeIsCalled() throws Exception {
+    TolgeeMock.delayMs = 2000;
+    try {
+      final MvcResult queued =
+          mvc.perform(
+                  post("/api/v1/localisation/update")
+                      .accept(MediaType.APPLICATION_JSON)
+                      .contentType(MediaType.APPLICATION_JSON)
+                      .content(
+                          objectMapper.writeValueAsBytes(
+                              List.of(new Localisation(null, "example", "key1", "fi", "Avain 1")))))
+              .andExpect(status().isAccepted())
+              .andReturn();
+      final Integer importId =
+          objectMapper
+              .readValue(queued.getResponse().getContentAsByteArray(), MassUpdateResult.class)
+              .getImportId();
+      await()
+          .atMost(Duration.ofSeconds(2))
+          .until(
+              () ->
+                  jdbcTemplate.queryForObject(
+                      "SELECT status FROM tolgee_import WHERE id = ?", String.class, importId),
+              "PROCESSING"::equals);
+      // the claimed row is not locked and no transaction is left open while waiting for Tolgee
+      assertEquals(
+          importId,
+          jdbcTemplate.queryForObject(
+              "SELECT id FROM tolgee_import WHERE id = ? FOR UPDATE NOWAIT",
+              Integer.class,
+              importId));
+      assertEquals(
+          0,
+          jdbcTemplate.queryForObject(
+              """
+              SELECT count(*) FROM pg_stat_activity
+              WHERE datname = current_database() AND state LIKE 'idle in transaction%'""",
+              Integer.class));
+      assertEquals(1, awaitImport(queued).getCreated());
+    } finally {
+      TolgeeMock.delayMs = 0;
+    }
+  }
+
+  @Test
+  public void testLocalisationUpdateWithExpiredLeaseIsProcessedAgain() throws Exception {
+    // claimed by a node that died while calling Tolgee
+    final Integer importId =
+        jdbcTemplate.queryForObject(
+            """
+            INSERT INTO tolgee_import (status, localisations, attempts, locked_until, created_by)
+            VALUES ('PROCESSING', ?, 1, now() - interval '1 minute', 'test') RETURNING id""",
+            Integer.class,
+            objectMapper.writeValueAsString(
+                List.of(new Localisation(null, "example", "key1", "fi", "Avain 1"))));
+    await()
+        .atMost(Duration.ofSeconds(10))
+        .until(
+            () ->
+                jdbcTemplate.queryForObject(
+                    "SELECT status FROM tolgee_import WHERE id = ?", String.class, importId),
+            "DONE"::equals);
+    final Map<String, Object> processed =
+        jdbcTemplate.queryForMap(
+            "SELECT attempts, created_count FROM tolgee_import WHERE id = ?", importId);
+    assertEquals(2, processed.get("attempts"));
+    assertEquals(1, processed.get("created_count"));
+  }
+
+  @Test
+  public void testLocalisationUpdateWithExpiredLeaseIsGivenUpAfterMaxAttempts() throws Exception {
+    // tolgee.import-queue.max-attempts is 5 in tests
+    final Integer importId =
+        jdbcTemplate.queryForObject(
+            """
+            INSERT INTO tolgee_import (status, localisations, attempts, locked_until, created_by)
+            VALUES ('PROCESSING', ?, 5, now() - interval '1 minute', 'test') RETURNING id""",
+            Integer.class,
+            objectMapper.writeValueAsString(
+                List.of(
+                    new Localisation(null, "example", "key1", "fi", "Avain 1"),
+                    new Localisation(null, "example", "key1", "sv", "Nyckel 1"))));
+    await()
+        .atMost(Duration.ofSeconds(10))
+        .until(
+            () ->
+                jdbcTemplate.queryForObject(
+                    "SELECT status FROM tolgee_import WHERE id = ?", String.class, importId),
+            "DONE"::equals);
+    final Map<String, Object> processed =
+        jdbcTemplate.queryForMap(
+            "SELECT attempts, created_count, not_modified_count FROM tolgee_import WHERE id = ?",
+            importId);
+    assertEquals(5, processed.get("attempts"));
+    assertEquals(0, processed.get("created_count"));
+    assertEquals(2, processed.get("not_modified_count"));
+  }
+
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testLocalisationUpdateWithoutValueIsRejected() throws Exception {
     mvc.perform(
             post("/api/v1/localisation/update")
                 .accept(MediaType.APPLICATION_JSON)
@@ -475,10 +1258,37 @@ public class ApiTests extends IntegrationTestBase {
                     objectMapper.writeValueAsBytes(
                         List.of(
                             new Localisation(null, "example", "key1", "fi", "Avain 1"),
-                            new Localisation(null, "example", "key2", "fi", "Avain 2")))))
-        .andExpect(status().is2xxSuccessful())
-        .andExpect(content().contentType(MediaType.APPLICATION_JSON))
-        .andExpect(jsonPath("$.created", is(2)));
+                            new Localisation(null, "example", "key2", "fi", null)))))
+        .andExpect(status().isBadRequest());
+    assertEquals(
+        0,
+        jdbcTemplate.queryForObject(
+            "SELECT count(*) FROM tolgee_import WHERE localisations LIKE '%key2%'",
+            Integer.class));
+  }
+
+  /** Polls the status of a queued import until it is done. */
+  private MassUpdateResult awaitImport(final MvcResult queued) throws Exception {
+    final Integer importId =
+        objectMapper
+            .readValue(queued.getResponse().getContentAsByteArray(), MassUpdateResult.class)
+            .getImportId();
+    // polled in the test thread to keep the mock user
+    return await()
+        .pollInSameThread()
+        .atMost(Duration.ofSeconds(10))
+        .until(
+            () ->
+                objectMapper.readValue(
+                    mvc.perform(
+                            get("/api/v1/localisation/update/" + importId)
+                                .accept(MediaType.APPLICATION_JSON))
+                        .andExpect(status().isOk())
+                        .andReturn()
+                        .getResponse()
+                        .getContentAsByteArray(),
+                    MassUpdateResult.class),
+            result -> result.getStatus().equals("OK"));
   }
 
   @Test
@@ -535,6 +1345,92 @@ public class ApiTests extends IntegrationTestBase {
         .andExpect(header().string("Last-Modified", lastModified));
   }
 
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testGetLocalisationInTolgeeFormatIncludesOverrides() throws Exception {
+    final String eTag =
+        mvc.perform(get("/tolgee/example/fi.json").accept(MediaType.APPLICATION_OCTET_STREAM))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getHeader("ETag");
+    final LocalisationOverride override =
+        addLocalisationOverride("example", "testi", "fi", "Yliajettu");
+    final MvcResult result =
+        mvc.perform(
+                get("/tolgee/example/fi.json")
+                    .accept(MediaType.APPLICATION_OCTET_STREAM)
+                    .header("If-None-Match", eTag))
+            .andExpect(status().isOk())
+            .andExpect(header().string("ETag", notNullValue()))
+            .andReturn();
+    assertNotEquals(eTag, result.getResponse().getHeader("ETag"));
+    // last modified of the merged file is the newest override, not the time it was built
+    assertEquals(
+        override.getUpdated().atZone(ZoneId.systemDefault()).toInstant().getEpochSecond(),
+        result.getResponse().getDateHeader("Last-Modified") / 1000);
+    localisationIndex.rebuild();
+    mvc.perform(get("/tolgee/example/fi.json").accept(MediaType.APPLICATION_OCTET_STREAM))
+        .andExpect(status().isOk())
+        .andExpect(header().string("ETag", result.getResponse().getHeader("ETag")))
+        .andExpect(
+            header().string("Last-Modified", result.getResponse().getHeader("Last-Modified")));
+    final Map<String, String> localisations =
+        objectMapper.readValue(
+            result.getResponse().getContentAsByteArray(),
+            new TypeReference<Map<String, String>>() {});
+    assertEquals("Yliajettu", localisations.get("testi"));
+    mvc.perform(
+            get("/tolgee/example/fi.json")
+                .accept(MediaType.APPLICATION_OCTET_STREAM)
+                .header("If-None-Match", result.getResponse().getHeader("ETag")))
+        .andExpect(status().isNotModified());
+  }
+
+  @WithMockUser("1.2.246.562.24.00000000001")
+  @Test
+  public void testLastModifiedOfTolgeeFormatDoesNotGoBackWhenOverrideIsDeleted()
+      throws Exception {
+    final LocalisationOverride override =
+        addLocalisationOverride("example", "testi", "fi", "Yliajettu");
+    final MvcResult merged =
+        mvc.perform(get("/tolgee/example/fi.json").accept(MediaType.APPLICATION_OCTET_STREAM))
+            .andExpect(status().isOk())
+            .andReturn();
+    // Last-Modified has a precision of one second
+    Thread.sleep(1000);
+    mvc.perform(delete("/api/v1/override/{id}", override.getId()))
+        .andExpect(status().is2xxSuccessful());
+
+    final MvcResult result =
+        mvc.perform(
+                get("/tolgee/example/fi.json")
+                    .accept(MediaType.APPLICATION_OCTET_STREAM)
+                    .header("If-Modified-Since", merged.getResponse().getHeader("Last-Modified")))
+            .andExpect(status().isOk())
+            .andReturn();
+    assertTrue(
+        result.getResponse().getDateHeader("Last-Modified")
+            > merged.getResponse().getDateHeader("Last-Modified"));
+    assertNotEquals(
+        "Yliajettu",
+        objectMapper
+            .readValue(
+                result.getResponse().getContentAsByteArray(),
+                new TypeReference<Map<String, String>>() {})
+            .get("testi"));
+    localisationIndex.rebuild();
+    mvc.perform(get("/tolgee/example/fi.json").accept(MediaType.APPLICATION_OCTET_STREAM))
+        .andExpect(
+            header().string("Last-Modified", result.getResponse().getHeader("Last-Modified")));
+  }
+
+  @Test
+  public void testGetMissingLocalisationInTolgeeFormat() throws Exception {
+    mvc.perform(get("/tolgee/example/xx.json").accept(MediaType.APPLICATION_OCTET_STREAM))
+        .andExpect(status().isNotFound());
+  }
+
   @Test
   public void testGetRootLocalisationInTolgeeFormat() throws Exception {
     mvc.perform(get("/tolgee/fi.json").accept(MediaType.APPLICATION_OCTET_STREAM))
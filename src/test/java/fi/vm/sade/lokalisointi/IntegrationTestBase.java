@@ -6,6 +6,7 @@ import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import fi.vm.sade.lokalisointi.model.LocalisationOverride;
 import fi.vm.sade.lokalisointi.storage.ExtendedDokumenttipalvelu;
 import fi.vm.sade.lokalisointi.storage.Database;
+import fi.vm.sade.lokalisointi.storage.LocalisationIndex;
 import jakarta.validation.Valid;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -14,6 +15,7 @@ import org.junit.jupiter.api.BeforeAll;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringBootConfiguration;
@@ -21,12 +23,14 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.util.TestPropertyValues;
 import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.data.jdbc.core.JdbcAggregateTemplate;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
@@ -40,19 +44,43 @@ import org.testcontainers.containers.localstack.LocalStackContainer;
 import org.testcontainers.containers.wait.strategy.DockerHealthcheckWaitStrategy;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
-import org.testcontainers.shaded.org.apache.commons.io.FileUtils;
 import org.testcontainers.utility.DockerImageName;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.SdkRequest;
+import software.amazon.awssdk.core.SdkResponse;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
 import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
-import java.io.File;
+import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.Statement;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import static fi.vm.sade.lokalisointi.configuration.SecurityConfiguration.getCorsConfigurerCustomizer;
 import static fi.vm.sade.lokalisointi.configuration.SecurityConfiguration.nonAuthenticatedRoutes;
@@ -67,6 +95,8 @@ import static org.testcontainers.containers.localstack.LocalStackContainer.Servi
 @ComponentScan("fi.vm.sade.lokalisointi")
 public abstract class IntegrationTestBase {
   static final String BUCKET_NAME = "opintopolku-test-dokumenttipalvelu";
+  static final SqlRecorder SQL_RECORDER = new SqlRecorder();
+  static final S3Recorder S3_RECORDER = new S3Recorder();
   final ObjectMapper objectMapper = JsonMapper.builder().addModule(new JavaTimeModule()).build();
   @Autowired MockMvc mvc;
 
@@ -97,6 +127,7 @@ public abstract class IntegrationTestBase {
 
   @Autowired ExtendedDokumenttipalvelu dokumenttipalvelu;
   @Autowired TestDatabase database;
+  @Autowired LocalisationIndex localisationIndex;
 
   @BeforeAll
   static void createBucket() throws IOException, InterruptedException {
@@ -126,20 +157,27 @@ public abstract class IntegrationTestBase {
     public ExtendedDokumenttipalvelu dokumenttipalvelu() {
       // re-wire dokumenttipalvelu with localstack
       return new ExtendedDokumenttipalvelu(LOCAL_STACK.getRegion(), BUCKET_NAME) {
+        private S3AsyncClient client;
+
         @Override
-        public S3AsyncClient getClient() {
-          return S3AsyncClient.builder()
-              .endpointOverride(LOCAL_STACK.getEndpointOverride(S3))
-              .credentialsProvider(
-                  StaticCredentialsProvider.create(
-                      AwsBasicCredentials.create(
-                          LOCAL_STACK.getAccessKey(), LOCAL_STACK.getSecretKey())))
-              .region(Region.of(LOCAL_STACK.getRegion()))
-              .httpClientBuilder(
-                  NettyNioAsyncHttpClient.builder()
-                      .connectionTimeout(Duration.ofSeconds(60))
-                      .maxConcurrency(100))
-              .build();
+        public synchronized S3AsyncClient getClient() {
+          if (client == null) {
+            client =
+                S3AsyncClient.builder()
+                    .endpointOverride(LOCAL_STACK.getEndpointOverride(S3))
+                    .credentialsProvider(
+                        StaticCredentialsProvider.create(
+                            AwsBasicCredentials.create(
+                                LOCAL_STACK.getAccessKey(), LOCAL_STACK.getSecretKey())))
+                    .region(Region.of(LOCAL_STACK.getRegion()))
+                    .httpClientBuilder(
+                        NettyNioAsyncHttpClient.builder()
+                            .connectionTimeout(Duration.ofSeconds(60))
+                            .maxConcurrency(100))
+                    .overrideConfiguration(c -> c.addExecutionInterceptor(S3_RECORDER))
+                    .build();
+          }
+          return client;
         }
 
         @Override
@@ -156,6 +194,16 @@ public abstract class IntegrationTestBase {
       };
     }
 
+    @Bean
+    public static BeanPostProcessor sqlRecordingPostProcessor() {
+      return new BeanPostProcessor() {
+        @Override
+        public Object postProcessAfterInitialization(final Object bean, final String beanName) {
+          return bean instanceof DataSource dataSource ? SQL_RECORDER.wrap(dataSource) : bean;
+        }
+      };
+    }
+
     @Bean
     public SecurityFilterChain filterChain(final HttpSecurity http) throws Exception {
       return http.headers(AbstractHttpConfigurer::disable)
@@ -166,7 +214,8 @@ public abstract class IntegrationTestBase {
               nonAuthenticatedRoutes(
                   List.of(
                       "/lokalisointi/api/v1/copy/available-namespaces",
-                      "/lokalisointi/api/v1/copy/localisation-files"),
+                      "/lokalisointi/api/v1/copy/localisation-files",
+                      "/lokalisointi/api/v1/copy/manifest"),
                   List.of("/tolgee/v2/projects/{projectId}/keys/import-resolvable")))
           .build();
     }
@@ -174,12 +223,174 @@ public abstract class IntegrationTestBase {
 
   @Repository
   static class TestDatabase extends Database {
-    protected TestDatabase(JdbcAggregateTemplate template) {
-      super(template);
+    protected TestDatabase(
+        JdbcAggregateTemplate template,
+        JdbcTemplate jdbcTemplate,
+        ApplicationEventPublisher eventPublisher) {
+      super(template, jdbcTemplate, eventPublisher);
     }
 
     public void deleteAllOverrides() {
       template.deleteAll(LocalisationOverride.class);
+      jdbcTemplate.update("DELETE FROM localisation_override_removal");
+      reload();
+    }
+
+    /** Inserts an override like another node would, without announcing the change. */
+    public LocalisationOverride insertWithoutAnnouncing(final LocalisationOverride override) {
+      return template.insert(override);
+    }
+  }
+
+  /** Records SQL statements run through the application's datasource. */
+  static class SqlRecorder {
+    private final List<String> statements = new CopyOnWriteArrayList<>();
+
+    List<String> statements() {
+      return List.copyOf(statements);
+    }
+
+    void clear() {
+      statements.clear();
+    }
+
+    DataSource wrap(final DataSource dataSource) {
+      return proxy(DataSource.class, dataSource);
+    }
+
+    private <T> T proxy(final Class<T> type, final T target) {
+      return type.cast(
+          Proxy.newProxyInstance(
+              type.getClassLoader(),
+              new Class<?>[] {type},
+              (proxy, method, args) -> invoke(target, method, args)));
+    }
+
+    private Object invoke(final Object target, final Method method, final Object[] args)
+        throws Throwable {
+      final String name = method.getName();
+      final boolean runsSql =
+          name.startsWith("prepare") || name.startsWith("execute") || name.equals("addBatch");
+      if (runsSql && args != null && args.length > 0 && args[0] instanceof String sql) {
+        statements.add(sql);
+      }
+      final Object result;
+      try {
+        result = method.invoke(target, args);
+      } catch (final InvocationTargetException e) {
+        throw e.getCause();
+      }
+      if (name.equals("getConnection")) {
+        return proxy(Connection.class, (Connection) result);
+      } else if (name.equals("createStatement")) {
+        return proxy(Statement.class, (Statement) result);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Records requests made with the application's S3 client by request type. Keys marked
+   * undeletable are left out of DeleteObjects requests and reported as errors in the response, as
+   * S3 does in quiet mode when it cannot delete an object.
+   */
+  static class S3Recorder implements ExecutionInterceptor {
+    private static final ExecutionAttribute<List<String>> UNDELETED =
+        new ExecutionAttribute<>("undeleted");
+    private final Map<Class<?>, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private final Map<Class<?>, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    private final Map<Class<?>, AtomicInteger> maxInFlight = new ConcurrentHashMap<>();
+    private final Set<String> undeletableKeys = ConcurrentHashMap.newKeySet();
+
+    int requests(final Class<? extends SdkRequest> type) {
+      return counter(requests, type).get();
+    }
+
+    /** Largest number of requests of given type that were in flight at the same time. */
+    int maxInFlight(final Class<? extends SdkRequest> type) {
+      return counter(maxInFlight, type).get();
+    }
+
+    void undeletable(final String key) {
+      undeletableKeys.add(key);
+    }
+
+    void clear() {
+      requests.clear();
+      maxInFlight.clear();
+      undeletableKeys.clear();
+    }
+
+    private static AtomicInteger counter(
+        final Map<Class<?>, AtomicInteger> counters, final Class<?> type) {
+      return counters.computeIfAbsent(type, t -> new AtomicInteger());
+    }
+
+    @Override
+    public void beforeExecution(
+        final Context.BeforeExecution context, final ExecutionAttributes executionAttributes) {
+      final Class<?> type = context.request().getClass();
+      counter(requests, type).incrementAndGet();
+      final int current = counter(inFlight, type).incrementAndGet();
+      counter(maxInFlight, type).accumulateAndGet(current, Math::max);
+    }
+
+    @Override
+    public SdkRequest modifyRequest(
+        final Context.ModifyRequest context, final ExecutionAttributes executionAttributes) {
+      if (!(context.request() instanceof final DeleteObjectsRequest request)) {
+        return context.request();
+      }
+      final List<String> undeleted =
+          request.delete().objects().stream()
+              .map(ObjectIdentifier::key)
+              .filter(undeletableKeys::contains)
+              .toList();
+      if (undeleted.isEmpty()) {
+        return request;
+      }
+      executionAttributes.putAttribute(UNDELETED, undeleted);
+      return request.toBuilder()
+          .delete(
+              request.delete().toBuilder()
+                  .objects(
+                      request.delete().objects().stream()
+                          .filter(o -> !undeletableKeys.contains(o.key()))
+                          .toList())
+                  .build())
+          .build();
+    }
+
+    @Override
+    public SdkResponse modifyResponse(
+        final Context.ModifyResponse context, final ExecutionAttributes executionAttributes) {
+      final List<String> undeleted = executionAttributes.getAttribute(UNDELETED);
+      if (undeleted == null
+          || !(context.response() instanceof final DeleteObjectsResponse response)) {
+        return context.response();
+      }
+      final List<S3Error> errors = new ArrayList<>(response.errors());
+      undeleted.forEach(
+          key ->
+              errors.add(
+                  S3Error.builder()
+                      .key(key)
+                      .code("AccessDenied")
+                      .message("Access Denied")
+                      .build()));
+      return response.toBuilder().errors(errors).build();
+    }
+
+    @Override
+    public void afterExecution(
+        final Context.AfterExecution context, final ExecutionAttributes executionAttributes) {
+      counter(inFlight, context.request().getClass()).decrementAndGet();
+    }
+
+    @Override
+    public void onExecutionFailure(
+        final Context.FailedExecution context, final ExecutionAttributes executionAttributes) {
+      counter(inFlight, context.request().getClass()).decrementAndGet();
     }
   }
 
@@ -213,23 +424,70 @@ public abstract class IntegrationTestBase {
   @RestController
   @RequestMapping("/lokalisointi/api/v1/copy")
   static class CopyControllerInUntuvaEnvironment {
+    static final AtomicInteger archiveRequests = new AtomicInteger();
+
+    /** Requests for this file fail as if the environment was unavailable. */
+    static volatile String unavailableFile;
+
     @GetMapping(value = "/localisation-files", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
     public ResponseEntity<byte[]> mockLocalisationArchive(
+        @RequestParam(value = "namespaces", required = false) final Collection<String> namespaces,
+        @RequestParam(value = "files", required = false) final Collection<String> files)
+        throws IOException {
+      archiveRequests.incrementAndGet();
+      if (files != null && files.contains(unavailableFile)) {
+        return ResponseEntity.status(503).build();
+      }
+      final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+      try (final ZipOutputStream out = new ZipOutputStream(archive)) {
+        for (final Map.Entry<String, byte[]> file : archiveEntries(namespaces).entrySet()) {
+          if (files == null || files.isEmpty() || files.contains(file.getKey())) {
+            out.putNextEntry(new ZipEntry(file.getKey()));
+            out.write(file.getValue());
+            out.closeEntry();
+          }
+        }
+      }
+      return ResponseEntity.ok()
+          .contentType(MediaType.APPLICATION_OCTET_STREAM)
+          .header("Content-Disposition", "attachment; filename=localisations.zip")
+          .body(archive.toByteArray());
+    }
+
+    @GetMapping(value = "/manifest", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, String>> mockManifest(
         @RequestParam(value = "namespaces", required = false) final Collection<String> namespaces)
+        throws IOException, NoSuchAlgorithmException {
+      final Map<String, String> manifest = new TreeMap<>();
+      for (final Map.Entry<String, byte[]> file : archiveEntries(namespaces).entrySet()) {
+        manifest.put(
+            file.getKey(),
+            HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(file.getValue())));
+      }
+      return ResponseEntity.ok(manifest);
+    }
+
+    private static Map<String, byte[]> archiveEntries(final Collection<String> namespaces)
         throws IOException {
       final String pathname =
           namespaces == null || namespaces.isEmpty()
               ? "src/test/resources/localisations.zip"
               : "src/test/resources/localisations-example.zip";
-
-      return ResponseEntity.ok()
-          .contentType(MediaType.APPLICATION_OCTET_STREAM)
-          .header("Content-Disposition", "attachment; filename=localisations.zip")
-          .body(FileUtils.readFileToByteArray(new File(pathname)));
+      final Map<String, byte[]> entries = new LinkedHashMap<>();
+      try (final ZipInputStream in = new ZipInputStream(new FileInputStream(pathname))) {
+        ZipEntry entry;
+        while ((entry = in.getNextEntry()) != null) {
+          entries.put(entry.getName(), in.readAllBytes());
+        }
+      }
+      return entries;
     }
 
+    static final AtomicInteger availableNamespacesRequests = new AtomicInteger();
+
     @GetMapping("/available-namespaces")
     public ResponseEntity<Collection<String>> mockAvailableNamespaces() {
+      availableNamespacesRequests.incrementAndGet();
       return ResponseEntity.ok(Set.of("lokalisointi", "esimerkki"));
     }
   }
@@ -237,11 +495,25 @@ public abstract class IntegrationTestBase {
   @RestController
   @RequestMapping("/tolgee/v2/projects/{projectId}/keys")
   static class TolgeeMock {
+    static final AtomicInteger importRequests = new AtomicInteger();
+
+    /** Number of next requests answered as if Tolgee was unavailable. */
+    static final AtomicInteger unavailableResponses = new AtomicInteger();
+
+    /** Delay before answering, to keep imports in progress. */
+    static volatile long delayMs;
+
     @PostMapping("/import-resolvable")
     public ResponseEntity<Map<String, ?>> tolgeeImportResolvable(
         @RequestHeader("X-API-Key") final String apiKey,
         @PathVariable String projectId,
-        @Valid @RequestBody final TolgeeImport body) {
+        @Valid @RequestBody final TolgeeImport body)
+        throws InterruptedException {
+      importRequests.incrementAndGet();
+      Thread.sleep(delayMs);
+      if (unavailableResponses.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+        return ResponseEntity.status(503).build();
+      }
       if (projectId == null || !projectId.equals("11100")) {
         return ResponseEntity.badRequest().build();
       }
@@ -0,0 +1,66 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BoundedConcurrencyTest {
+  @Test
+  public void testSynchronouslyCompletingTasksDoNotNest() {
+    final List<Integer> items = IntStream.range(0, 100_000).boxed().toList();
+    final List<Integer> results =
+        BoundedConcurrency.map(items, 4, item -> CompletableFuture.completedFuture(item * 2))
+            .join();
+    assertEquals(items.size(), results.size());
+    assertEquals(199_998, results.getLast());
+  }
+
+  @Test
+  public void testLimitsTasksInFlight() {
+    final List<CompletableFuture<Integer>> started = new ArrayList<>();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    final CompletableFuture<List<Integer>> result =
+        BoundedConcurrency.map(
+            IntStream.range(0, 10).boxed().toList(),
+            3,
+            item -> {
+              maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+              final CompletableFuture<Integer> task = new CompletableFuture<>();
+              started.add(task);
+              return task.whenComplete((r, e) -> inFlight.decrementAndGet());
+            });
+    assertEquals(3, started.size());
+    for (int i = 0; i < started.size(); i++) {
+      started.get(i).complete(i);
+    }
+    assertEquals(10, started.size());
+    assertEquals(IntStream.range(0, 10).boxed().toList(), result.join());
+    assertEquals(3, maxInFlight.get());
+  }
+
+  @Test
+  public void testFailingTaskDoesNotStopOthers() {
+    final AtomicInteger calls = new AtomicInteger();
+    final CompletableFuture<List<Integer>> result =
+        BoundedConcurrency.map(
+            List.of(1, 2, 3, 4),
+            2,
+            item -> {
+              calls.incrementAndGet();
+              if (item == 2) {
+                throw new IllegalStateException("failed");
+              }
+              return CompletableFuture.completedFuture(item);
+            });
+    assertThrows(CompletionException.class, result::join);
+    assertEquals(4, calls.get());
+  }
+}
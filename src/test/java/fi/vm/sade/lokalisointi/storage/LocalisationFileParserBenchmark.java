@@ -0,0 +1,85 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import fi.vm.sade.lokalisointi.model.Localisation;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Manually run allocation comparison against parsing to an intermediate map and splitting the
+ * object key once per entry, which is how localisation files were parsed before. Not run as part
+ * of the test suite, since allocation counts depend on the JVM.
+ */
+public class LocalisationFileParserBenchmark {
+  private static final String OBJECT_KEY = "t-lokalisointi/abcd/example/fi.json";
+  private static final ObjectMapper MAPPER = JsonMapper.builder().build();
+
+  public static void main(final String[] args) throws IOException {
+    final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+    final byte[] content = largeLocalisationFile(entries);
+    if (!parseViaMap(content).equals(LocalisationFileParser.parse("example", "fi", content))) {
+      throw new IllegalStateException("Parsers disagree");
+    }
+    final long viaMap = allocatedBytes(() -> parseViaMap(content));
+    final long streaming =
+        allocatedBytes(() -> LocalisationFileParser.parse("example", "fi", content));
+    System.out.printf("Allocated bytes per parse: via map %d, streaming %d%n", viaMap, streaming);
+  }
+
+  private static List<Localisation> parseViaMap(final byte[] content) throws IOException {
+    final Map<String, String> localisations =
+        MAPPER.readValue(content, new TypeReference<Map<String, String>>() {});
+    final List<Localisation> result = new ArrayList<>();
+    for (final String key : localisations.keySet()) {
+      final List<String> splittedObjectKey =
+          Arrays.stream(OBJECT_KEY.split("/"))
+              .filter(s -> !s.equals("t-lokalisointi"))
+              .filter(s -> !s.equals("abcd"))
+              .toList();
+      result.add(
+          new Localisation(
+              null,
+              splittedObjectKey.size() > 1 ? splittedObjectKey.getFirst() : null,
+              key,
+              splittedObjectKey.getLast().split("\\.")[0],
+              localisations.get(key)));
+    }
+    return result;
+  }
+
+  private static byte[] largeLocalisationFile(final int entries) {
+    final StringBuilder json = new StringBuilder("{");
+    for (int i = 0; i < entries; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("\"key.number.%d\":\"Lokalisoitu arvo numero %d\"".formatted(i, i));
+    }
+    return json.append('}').toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private interface Parse {
+    List<Localisation> run() throws IOException;
+  }
+
+  private static long allocatedBytes(final Parse parse) throws IOException {
+    final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long threadId = Thread.currentThread().threadId();
+    // warm up so that JIT compilation does not skew the measurement
+    for (int i = 0; i < 20; i++) {
+      parse.run();
+    }
+    final int rounds = 20;
+    final long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < rounds; i++) {
+      parse.run();
+    }
+    return (threads.getThreadAllocatedBytes(threadId) - before) / rounds;
+  }
+}
@@ -0,0 +1,81 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import fi.vm.sade.lokalisointi.model.Localisation;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LocalisationFileParserTest {
+  @Test
+  public void testParsesFlatLocalisationFile() throws IOException {
+    final List<Localisation> localisations =
+        LocalisationFileParser.parse(
+            "example",
+            "fi",
+            """
+            {"create.item": "Luo", "empty": "", "nothing": null, "number": 1}"""
+                .getBytes(StandardCharsets.UTF_8));
+    assertEquals(
+        List.of(
+            new Localisation(null, "example", "create.item", "fi", "Luo"),
+            new Localisation(null, "example", "empty", "fi", ""),
+            new Localisation(null, "example", "nothing", "fi", null),
+            new Localisation(null, "example", "number", "fi", "1")),
+        localisations);
+  }
+
+  @Test
+  public void testRejectsNestedValues() {
+    assertThrows(
+        IOException.class,
+        () ->
+            LocalisationFileParser.parse(
+                "example",
+                "fi",
+                """
+                {"nested": {"key": "value"}}"""
+                    .getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testRejectsNestedArrays() {
+    assertThrows(
+        IOException.class,
+        () ->
+            LocalisationFileParser.parse(
+                "example",
+                "fi",
+                """
+                {"list": ["value"]}"""
+                    .getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testRejectsNonObjectFile() {
+    assertThrows(
+        IOException.class,
+        () ->
+            LocalisationFileParser.parse(
+                "example", "fi", "[]".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testUnescapesKeysAndValues() throws IOException {
+    final List<Localisation> localisations =
+        LocalisationFileParser.parse(
+            "example",
+            "sv",
+            """
+            {"quote.\\"key\\"": "Rad 1\\nRad 2 \\u00e5 \\\\", "plain": "Sk\u00e5ne"}"""
+                .getBytes(StandardCharsets.UTF_8));
+    assertEquals(
+        List.of(
+            new Localisation(null, "example", "quote.\"key\"", "sv", "Rad 1\nRad 2 \u00e5 \\"),
+            new Localisation(null, "example", "plain", "sv", "Sk\u00e5ne")),
+        localisations);
+  }
+}
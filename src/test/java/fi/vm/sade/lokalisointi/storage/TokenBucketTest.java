@@ -0,0 +1,26 @@
+package fi.vm.sade.lokalisointi.storage;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenBucketTest {
+  @Test
+  public void testRejectsRateThatNeverRefills() {
+    assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 5));
+    assertThrows(IllegalArgumentException.class, () -> new TokenBucket(-1, 5));
+    assertThrows(IllegalArgumentException.class, () -> new TokenBucket(Double.NaN, 5));
+    assertThrows(IllegalArgumentException.class, () -> new TokenBucket(5, 0));
+  }
+
+  @Test
+  public void testWaitsForTokensBeyondCapacity() throws InterruptedException {
+    final TokenBucket bucket = new TokenBucket(20, 2);
+    final long start = System.nanoTime();
+    for (int i = 0; i < 4; i++) {
+      bucket.acquire();
+    }
+    // two tokens are available at once, the next two are refilled in 100 ms
+    assertTrue(System.nanoTime() - start >= 90_000_000L);
+  }
+}